@@ -0,0 +1,235 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.encode;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/* 
+ * The vector forms of the encoder kernels, written with the jdk.incubator.vector API. This class belongs to the Java 16
+ * source root and is instantiated reflectively by EncoderKernels, which documents the contracts and the packaging.
+ * Every kernel computes exactly the same result as its scalar form: integer lanes wrap around just like scalar ints
+ * and longs, and the floating-point lag sum takes the exact integer path only when no rounding can occur.
+ */
+final class VectorKernels implements EncoderKernels.Implementation {
+	
+	/*---- Vector species ----*/
+	
+	private static final VectorSpecies<Integer> INT = IntVector.SPECIES_PREFERRED;
+	
+	private static final VectorSpecies<Long> LONG = LongVector.SPECIES_PREFERRED;
+	
+	// Int lanes of half the width of LONG, thus with the same lane count, for widening ints to longs.
+	private static final VectorSpecies<Integer> HALF_INT = VectorSpecies.of(int.class, VectorShape.forBitSize(LONG.vectorBitSize() / 2));
+	
+	/*---- Kernels ----*/
+	
+	// Computes one vector of consecutive predictions at a time, adding up the products of each coefficient with the
+	// samples at the matching distance, and finishes the few positions past the last full vector in scalar code.
+	public void applyLpc(int[] x, int length, int[] coefs, int shift, boolean narrow, long[] dest) {
+		int order = coefs.length;
+		
+		if (order >= length) {
+			EncoderKernels.applyLpcScalar(x, length, coefs, shift, narrow, dest);
+			return;
+		}
+		
+		for (int i = 0; i < order; i++) {
+			dest[i] = x[i];
+		}
+		
+		int i = order;
+		
+		if (narrow) {
+			// Accumulate the shifted dot products in 32-bit lanes, then widen them while subtracting
+			int[] acc = ScratchArena.get().intArray(ScratchArena.LPC_SUMS, length);
+			
+			for (int upper = order + INT.loopBound(length - order); i < upper; i += INT.length()) {
+				IntVector sum = IntVector.zero(INT);
+				
+				for (int j = 0; j < order; j++) {
+					sum = sum.add(IntVector.fromArray(INT, x, i - 1 - j).mul(coefs[j]));
+				}
+				
+				sum.lanewise(VectorOperators.ASHR, shift).intoArray(acc, i);
+			}
+			
+			for (; i < length; i++) {
+				int sum = 0;
+				
+				for (int j = 0; j < order; j++) {
+					sum += x[i - 1 - j] * coefs[j];
+				}
+				
+				acc[i] = sum >> shift;
+			}
+			
+			for (int k = order; k < length; k++) {
+				dest[k] = x[k] - (long)acc[k];
+			}
+		} else {
+			// Same scheme with the samples widened to 64-bit lanes, which hold the sums directly
+			for (int upper = order + LONG.loopBound(length - order); i < upper; i += LONG.length()) {
+				LongVector sum = LongVector.zero(LONG);
+				
+				for (int j = 0; j < order; j++) {
+					sum = sum.add(widen(x, i - 1 - j).mul(coefs[j]));
+				}
+				
+				widen(x, i).sub(sum.lanewise(VectorOperators.ASHR, shift)).intoArray(dest, i);
+			}
+			
+			for (; i < length; i++) {
+				long sum = 0;
+				
+				for (int j = 0; j < order; j++) {
+					sum += (long)x[i - 1 - j] * coefs[j];
+				}
+				
+				dest[i] = x[i] - (sum >> shift);
+			}
+		}
+	}
+	
+	// Sums the products in 64-bit lanes when that is provably exact, and otherwise defers to the scalar form.
+	public double lagSum(long[] data, int lag) {
+		int n = data.length - lag;
+		
+		if (n <= 0) {
+			return 0;
+		}
+		
+		// If every product and partial sum is an integer below 2^53, then the scalar form adds in floating point
+		// without any rounding, hence its result equals the exact sum in 64-bit integers
+		if (2 * bitLength(absBound(data)) + bitLength(n) > 53) {
+			return EncoderKernels.lagSumScalar(data, lag);
+		}
+		
+		LongVector acc = LongVector.zero(LONG);
+		int j = 0;
+		
+		for (int upper = LONG.loopBound(n); j < upper; j += LONG.length()) {
+			acc = acc.add(LongVector.fromArray(LONG, data, j).mul(LongVector.fromArray(LONG, data, j + lag)));
+		}
+		
+		long sum = acc.reduceLanes(VectorOperators.ADD);
+		
+		for (; j < n; j++) {
+			sum += data[j] * data[j + lag];
+		}
+		
+		return sum;
+	}
+	
+	// Reduces each partition with a vector sum and a vector OR, and finishes its tail in scalar code.
+	public long zigzagPartitionSums(long[] data, int warmup, int partSize, long[] sums) {
+		int numPartitions = data.length / partSize;
+		long accumulator = 0;
+		
+		for (int p = 0, start = 0; p < numPartitions; p++, start += partSize) {
+			int i = Math.max(start, warmup);
+			int end = start + partSize;
+			LongVector sumVec = LongVector.zero(LONG);
+			LongVector orVec = LongVector.zero(LONG);
+			
+			if (i < end) {
+				for (int upper = i + LONG.loopBound(end - i); i < upper; i += LONG.length()) {
+					LongVector val = LongVector.fromArray(LONG, data, i);
+					val = val.lanewise(VectorOperators.LSHL, 1).lanewise(VectorOperators.XOR, val.lanewise(VectorOperators.ASHR, 63));
+					sumVec = sumVec.add(val);
+					orVec = orVec.or(val);
+				}
+			}
+			
+			long sum = sumVec.reduceLanes(VectorOperators.ADD);
+			accumulator |= orVec.reduceLanes(VectorOperators.OR);
+			
+			for (; i < end; i++) {
+				long val = data[i];
+				val = (val << 1) ^ (val >> 63);
+				sum += val;
+				accumulator |= val;
+			}
+			
+			sums[p] = sum;
+		}
+		
+		return accumulator;
+	}
+	
+	// Adds, shifts and subtracts whole vectors of both channels, and finishes the tail in scalar code.
+	public void splitMidSide(long[] left, long[] right, int length, long[] mid, long[] side) {
+		int i = 0;
+		
+		for (int upper = LONG.loopBound(length); i < upper; i += LONG.length()) {
+			LongVector l = LongVector.fromArray(LONG, left, i);
+			LongVector r = LongVector.fromArray(LONG, right, i);
+			l.add(r).lanewise(VectorOperators.ASHR, 1).intoArray(mid, i);
+			l.sub(r).intoArray(side, i);
+		}
+		
+		for (; i < length; i++) {
+			long l = left[i];
+			long r = right[i];
+			mid[i] = (l + r) >> 1;
+			side[i] = l - r;
+		}
+	}
+	
+	/*---- Helper functions ----*/
+	
+	// Loads LONG.length() ints starting at x[off] and sign-extends them to longs.
+	private static LongVector widen(int[] x, int off) {
+		return (LongVector)IntVector.fromArray(HALF_INT, x, off).castShape(LONG, 0);
+	}
+	
+	// Returns the bitwise OR of the absolute values of the given array, which is at least the largest of them.
+	// The result is negative if the array contains Long.MIN_VALUE.
+	private static long absBound(long[] data) {
+		LongVector acc = LongVector.zero(LONG);
+		int i = 0;
+		
+		for (int upper = LONG.loopBound(data.length); i < upper; i += LONG.length()) {
+			acc = acc.or(LongVector.fromArray(LONG, data, i).lanewise(VectorOperators.ABS));
+		}
+		
+		long result = acc.reduceLanes(VectorOperators.OR);
+		
+		for (; i < data.length; i++) {
+			result |= Math.abs(data[i]);
+		}
+		
+		return result;
+	}
+	
+	// Returns the number of bits needed to represent the given value as unsigned, i.e. 64 for negative values.
+	private static int bitLength(long x) {
+		return 64 - Long.numberOfLeadingZeros(x);
+	}
+	
+	/*---- Constructors ----*/
+	
+	VectorKernels() {}  // Instantiated reflectively by EncoderKernels
+}
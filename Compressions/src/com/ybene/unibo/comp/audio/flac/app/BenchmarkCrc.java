@@ -0,0 +1,115 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.app;
+
+import java.util.Random;
+import com.ybene.unibo.comp.audio.flac.common.FlacCrc;
+
+/**
+ * Measures the throughput of the frame CRC calculations on random data, comparing the slicing-by-8
+ * implementation in {@link FlacCrc} with the bit-at-a-time loop the encoder used before and the
+ * byte-at-a-time table the decoder used before. Prints bytes per second for each, and fails if they disagree.
+ */
+
+public final class BenchmarkCrc {
+	
+	public static void main(String[] args) {
+		byte[] data = new byte[16 << 20];
+		new Random(1).nextBytes(data);
+		int trials = 5;
+		
+		int expected = -1;
+		for (int method = 0; method < 3; method++) {
+			long bestTime = Long.MAX_VALUE;
+			int result = 0;
+			
+			for (int i = 0; i < trials; i++) {
+				long start = System.nanoTime();
+				switch (method) {
+					case 0:  result = crcBitwise(data);  break;
+					case 1:  result = crcBytewise(data);  break;
+					case 2:  result = FlacCrc.update8(0, data, 0, data.length) << 16 | FlacCrc.update16(0, data, 0, data.length);  break;
+					default:  throw new AssertionError();
+				}
+				bestTime = Math.min(System.nanoTime() - start, bestTime);
+			}
+			
+			if (method == 0)
+				expected = result;
+			else if (result != expected)
+				throw new AssertionError("CRC mismatch");
+			
+			String[] names = {"Bit at a time", "Byte at a time", "Slicing by 8"};
+			System.out.printf("%-15s %8.1f MB/s%n", names[method], data.length / (bestTime / 1e9) / 1e6);
+		}
+	}
+	
+	
+	// Returns (CRC-8 << 16 | CRC-16) of the data, processing one bit per step.
+	private static int crcBitwise(byte[] data) {
+		int crc8 = 0;
+		int crc16 = 0;
+		for (byte x : data) {
+			int b = x & 0xFF;
+			crc8 ^= b;
+			crc16 ^= b << 8;
+			for (int i = 0; i < 8; i++) {
+				crc8 <<= 1;
+				crc16 <<= 1;
+				crc8 ^= (crc8 >>> 8) * 0x107;
+				crc16 ^= (crc16 >>> 16) * 0x18005;
+			}
+		}
+		return crc8 << 16 | crc16;
+	}
+	
+	
+	// Returns (CRC-8 << 16 | CRC-16) of the data, processing one byte per step with 256-entry tables.
+	private static int crcBytewise(byte[] data) {
+		int crc8 = 0;
+		int crc16 = 0;
+		for (byte x : data) {
+			int b = x & 0xFF;
+			crc8 = CRC8_TABLE[crc8 ^ b];
+			crc16 = CRC16_TABLE[(crc16 >>> 8) ^ b] ^ ((crc16 & 0xFF) << 8);
+		}
+		return crc8 << 16 | crc16;
+	}
+	
+	
+	private static int[] CRC8_TABLE  = new int[256];
+	private static int[] CRC16_TABLE = new int[256];
+	
+	static {
+		for (int i = 0; i < CRC8_TABLE.length; i++) {
+			int temp8 = i;
+			int temp16 = i << 8;
+			for (int j = 0; j < 8; j++) {
+				temp8 = (temp8 << 1) ^ ((temp8 >>> 7) * 0x107);
+				temp16 = (temp16 << 1) ^ ((temp16 >>> 15) * 0x18005);
+			}
+			CRC8_TABLE[i] = temp8;
+			CRC16_TABLE[i] = temp16;
+		}
+	}
+
+}
@@ -0,0 +1,219 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+import com.ybene.unibo.comp.audio.flac.common.StreamInfo;
+import com.ybene.unibo.comp.audio.flac.encode.BitOutputStream;
+import com.ybene.unibo.comp.audio.flac.encode.EncoderKernels;
+import com.ybene.unibo.comp.audio.flac.encode.FlacEncoder;
+import com.ybene.unibo.comp.audio.flac.encode.SubframeEncoder;
+
+/**
+ * Compares the encoder's scalar kernels with its Vector API kernels: first the throughput of each
+ * kernel on its own over a block of 4096 samples, then the throughput of encoding synthetic 16-bit
+ * stereo audio. The kernels are chosen once per JVM, so without arguments this program runs itself
+ * in a child JVM for each choice, and each child reports the kernels it actually used. The vector child needs Java 16 or later and the classes of
+ * the src-java16 source root, either from a multi-release JAR or on the class path.
+ * <p>Usage: java BenchmarkKernels [run]</p>
+ */
+public final class BenchmarkKernels {
+	
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length == 1 && args[0].equals("run")) {
+			runBenchmark();
+			return;
+		} else if (args.length != 0) {
+			System.err.println("Usage: java BenchmarkKernels [run]");
+			System.exit(1);
+			return;
+		}
+		
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String classPath = System.getProperty("java.class.path");
+		runChild(java, "-D" + EncoderKernels.KERNELS_PROPERTY + "=scalar", "-cp", classPath);
+		if (getJavaVersion() >= 16)
+			runChild(java, "--add-modules", "jdk.incubator.vector", "-cp", classPath);
+		else
+			System.out.println("vector: skipped, needs Java 16 or later");
+	}
+	
+	
+	private static void runChild(String... command) throws IOException, InterruptedException {
+		String[] cmd = Arrays.copyOf(command, command.length + 2);
+		cmd[command.length] = BenchmarkKernels.class.getName();
+		cmd[command.length + 1] = "run";
+		Process proc = new ProcessBuilder(cmd).inheritIO().start();
+		if (proc.waitFor() != 0)
+			throw new IOException("Benchmark process failed");
+	}
+	
+	
+	// Returns the feature version of the running Java platform, e.g. 8 for "1.8" and 17 for "17".
+	private static int getJavaVersion() {
+		String ver = System.getProperty("java.specification.version");
+		if (ver.startsWith("1."))
+			ver = ver.substring(2);
+		return Integer.parseInt(ver);
+	}
+	
+	
+	// Times each kernel and then the whole encoder, printing the best throughput of several trials.
+	private static void runBenchmark() throws IOException {
+		System.out.println(EncoderKernels.getImplementation() + " kernels:");
+		benchmarkKernels();
+		benchmarkEncoder();
+	}
+	
+	
+	// Calls each kernel many times on one block of the test signal, and prints millions of block samples per second.
+	private static void benchmarkKernels() {
+		int[][] signal = makeSignal(BLOCK_SIZE, 2);
+		int[] x = signal[0];
+		long[] left = new long[BLOCK_SIZE];
+		long[] right = new long[BLOCK_SIZE];
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			left[i] = signal[0][i];
+			right[i] = signal[1][i];
+		}
+		
+		// A typical order 8 predictor with a quantization shift of 12, whose sums fit in 32 bits for 16-bit samples
+		int[] coefs = {6000, -3000, 1500, -800, 400, -200, 100, -50};
+		long[] residual = new long[BLOCK_SIZE];
+		long[] mid = new long[BLOCK_SIZE];
+		long[] side = new long[BLOCK_SIZE];
+		long[] sums = new long[16];
+		EncoderKernels.applyLpc(x, BLOCK_SIZE, coefs, 12, true, residual);
+		
+		timeKernel("applyLpc, 32-bit sums", () -> {
+			EncoderKernels.applyLpc(x, BLOCK_SIZE, coefs, 12, true, mid);
+			return mid[BLOCK_SIZE - 1];
+		});
+		timeKernel("applyLpc, 64-bit sums", () -> {
+			EncoderKernels.applyLpc(x, BLOCK_SIZE, coefs, 12, false, mid);
+			return mid[BLOCK_SIZE - 1];
+		});
+		timeKernel("lagSum, lags 0 to 12", () -> {
+			double sum = 0;
+			for (int lag = 0; lag <= 12; lag++)
+				sum += EncoderKernels.lagSum(left, lag);
+			return (long)sum;
+		});
+		timeKernel("zigzagPartitionSums", () ->
+			EncoderKernels.zigzagPartitionSums(residual, coefs.length, BLOCK_SIZE / sums.length, sums) + sums[0]);
+		timeKernel("splitMidSide", () -> {
+			EncoderKernels.splitMidSide(left, right, BLOCK_SIZE, mid, side);
+			return mid[0] + side[BLOCK_SIZE - 1];
+		});
+	}
+	
+	
+	// Runs the given kernel call KERNEL_CALLS times per trial, and prints the best throughput.
+	private static void timeKernel(String name, KernelCall call) {
+		long bestTime = Long.MAX_VALUE;
+		long check = 0;
+		for (int i = 0; i < 10; i++) {  // The first trials also warm up the compiler
+			long start = System.nanoTime();
+			for (int j = 0; j < KERNEL_CALLS; j++)
+				check += call.run();
+			bestTime = Math.min(System.nanoTime() - start, bestTime);
+		}
+		
+		double samples = (double)KERNEL_CALLS * BLOCK_SIZE;
+		System.out.printf("  %-24s %8.1f Msamples/s%n", name, samples / (bestTime / 1e9) / 1e6);
+		checksum ^= check;
+	}
+	
+	
+	// Encodes the same signal several times, and prints the best throughput and the compressed size.
+	private static void benchmarkEncoder() throws IOException {
+		int numSamples = 44100 * 30;
+		int[][] samples = makeSignal(numSamples, 1);
+		int trials = 6;
+		
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(new OutputStream() {  // Silence the encoder's progress messages
+			public void write(int b) {}
+		}));
+		
+		long bestTime = Long.MAX_VALUE;
+		int size = 0;
+		try {
+			for (int i = 0; i < trials; i++) {
+				StreamInfo info = new StreamInfo();
+				info.sampleRate = 44100;
+				info.numChannels = 2;
+				info.sampleDepth = 16;
+				info.numSamples = numSamples;
+				
+				ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				BitOutputStream out = new BitOutputStream(bout);
+				long start = System.nanoTime();
+				new FlacEncoder(info, samples, BLOCK_SIZE, SubframeEncoder.SearchOptions.SUBSET_BEST, out);
+				out.flush();
+				bestTime = Math.min(System.nanoTime() - start, bestTime);
+				size = bout.size();
+			}
+		} finally {
+			System.setErr(err);
+		}
+		
+		double inputBytes = (double)numSamples * 2 * 2;
+		System.out.printf("  %-24s %8.1f MB/s of PCM input, %d bytes of output%n", "whole encoder",
+			inputBytes / (bestTime / 1e9) / 1e6, size);
+	}
+	
+	
+	// Returns a stereo signal of two partially correlated tones with noise, at a moderate 16-bit level.
+	private static int[][] makeSignal(int numSamples, long seed) {
+		Random rand = new Random(seed);
+		int[][] result = new int[2][numSamples];
+		for (int i = 0; i < numSamples; i++) {
+			double t = i / 44100.0;
+			double common = 6000 * Math.sin(2 * Math.PI * 220 * t) + 2000 * Math.sin(2 * Math.PI * 1375 * t);
+			result[0][i] = (int)Math.round(common + 1500 * Math.sin(2 * Math.PI * 331 * t) + rand.nextGaussian() * 40);
+			result[1][i] = (int)Math.round(common * 0.8 + rand.nextGaussian() * 40);
+		}
+		return result;
+	}
+	
+	
+	private static final int BLOCK_SIZE = 4096;
+	
+	private static final int KERNEL_CALLS = 2000;
+	
+	// Receives the results of the timed kernel calls, so that the compiler cannot discard them.
+	static volatile long checksum;
+	
+	
+	// One call of a kernel, returning some of its result.
+	private interface KernelCall {
+		long run();
+	}
+	
+}
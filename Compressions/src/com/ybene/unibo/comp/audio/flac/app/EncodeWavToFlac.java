@@ -22,7 +22,6 @@
 package com.ybene.unibo.comp.audio.flac.app;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -33,11 +32,8 @@ import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 
-import com.ybene.unibo.comp.audio.flac.common.StreamInfo;
 import com.ybene.unibo.comp.audio.flac.decode.DataFormatException;
-import com.ybene.unibo.comp.audio.flac.encode.BitOutputStream;
-import com.ybene.unibo.comp.audio.flac.encode.FlacEncoder;
-import com.ybene.unibo.comp.audio.flac.encode.RandomAccessFileOutputStream;
+import com.ybene.unibo.comp.audio.flac.encode.StreamingFlacEncoder;
 import com.ybene.unibo.comp.audio.flac.encode.SubframeEncoder;
 
 /**
@@ -56,12 +52,7 @@ public final class EncodeWavToFlac {
 		File inFile  = new File("./ressources/Sounds/Beethoven-Symphony_5-1.wav");
 		File outFile = new File("./ressources/Sounds/Beethoven-Symphony_5-1_encoded.flac");
 		
-		// Read WAV file headers and audio sample data
-		int[][] samples;
-		int sampleRate;
-		int sampleDepth;
-
-		// Parse and check WAV header
+		// Parse and check WAV header, then stream the audio sample data to the encoder
 		try (InputStream in = new BufferedInputStream(new FileInputStream(inFile))) {
 			
 			// ===== "RIFF" chunk descriptor =====
@@ -115,7 +106,7 @@ public final class EncodeWavToFlac {
 			
 			// SampleRate
 			// 8000, 44100, etc.
-			sampleRate = readLittleUint(in, 4);
+			int sampleRate = readLittleUint(in, 4);
 			// Check if the sample rate fits FLAC
 			if (sampleRate <= 0 || sampleRate >= (1 << 20)) {
 				throw new RuntimeException("Sample rate too large or invalid...");				
@@ -130,7 +121,7 @@ public final class EncodeWavToFlac {
 			// The number of bytes for one sample including all channels.
 			int blockAlign = readLittleUint(in, 2);
 			// SampleDepth
-			sampleDepth = readLittleUint(in, 2);
+			int sampleDepth = readLittleUint(in, 2);
 			if (sampleDepth == 0 || sampleDepth > 32 || sampleDepth % 8 != 0) {				
 				throw new RuntimeException("Unsupported sample depth...");
 			}
@@ -154,57 +145,21 @@ public final class EncodeWavToFlac {
 			// Subchunk2Size
 			// NumSamples * NumChannels * BitsPerSample / 8
 			// This is the number of bytes in the data.
-			int sampleDataLen = readLittleUint(in, 4);
+			long sampleDataLen = readLittleUint(in, 4) & 0xFFFFFFFFL;
 			if (sampleDataLen <= 0 || sampleDataLen % (numChannels * bytesPerSample) != 0) {				
 				throw new DataFormatException("Invalid length of audio sample data...");
 			}
 			// Number of samples, calculated from the size of the chunk, the size of a sample and the number of channels.
-			int numSamples = sampleDataLen / (numChannels * bytesPerSample);
-			samples = new int[numChannels][numSamples];
+			long numSamples = sampleDataLen / (numChannels * bytesPerSample);
 			
 			// ===== DATA =====
 			
-			// Parsing the samples (data)
-			for (int i = 0; i < numSamples; i++) {
-				for (int ch = 0; ch < numChannels; ch++) {
-					int val = readLittleUint(in, bytesPerSample);
-					
-					if (sampleDepth == 8) {
-						val -= 128;						
-					} else {						
-						val = (val << (32 - sampleDepth)) >> (32 - sampleDepth);
-					}
-					
-					samples[ch][i] = val;
-				}
-			}
+			// Open output file and encode the samples (data) to FLAC block by block
 			// Note: There might be chunks after "data", but they can be ignored.
-		}
-		
-		// Open output file and encode samples to FLAC
-		try (RandomAccessFile raf = new RandomAccessFile(outFile, "rw")) {
-			// Truncate an existing file
-			raf.setLength(0);
-			BitOutputStream out = new BitOutputStream(new BufferedOutputStream(new RandomAccessFileOutputStream(raf)));
-			out.writeInt(32, 0x664C6143);
-			
-			// Populate and write the stream info structure
-			StreamInfo info = new StreamInfo();
-			info.sampleRate = sampleRate;
-			info.numChannels = samples.length;
-			info.sampleDepth = sampleDepth;
-			info.numSamples = samples[0].length;
-			info.md5Hash = StreamInfo.getMd5Hash(samples, sampleDepth);
-			info.write(true, out);
-			
-			// Encode all frames
-			new FlacEncoder(info, samples, 4096, SubframeEncoder.SearchOptions.SUBSET_BEST, out);
-			out.flush();
-			
-			// Rewrite the stream info metadata block, which is located at a fixed offset in the file by definition.
-			raf.seek(4);
-			info.write(true, out);
-			out.flush();
+			try (RandomAccessFile raf = new RandomAccessFile(outFile, "rw");
+					StreamingFlacEncoder enc = new StreamingFlacEncoder(raf, sampleRate, numChannels, sampleDepth, 4096, SubframeEncoder.SearchOptions.SUBSET_BEST)) {
+				enc.writePcm(in, numSamples);
+			}
 		}
 		
 		// Time measurment - stop
@@ -0,0 +1,155 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.ybene.unibo.comp.audio.flac.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import com.ybene.unibo.comp.audio.flac.encode.StreamingFlacEncoder;
+import com.ybene.unibo.comp.audio.flac.encode.SubframeEncoder;
+
+/* 
+ * Measures how many bytes of heap the encoder allocates per frame in the steady state, and fails if that exceeds
+ * a fixed budget. It encodes synthetic 16-bit stereo audio in frames of 4096 samples with a streaming encoder, and
+ * after a warm-up round divides the allocations of the encoding thread by the number of frames. Exits with status 2
+ * if any search preset allocates more than BUDGET_PER_FRAME bytes per frame.
+ * 
+ * The work arrays of the search come from per-thread scratch arenas, so what remains is mostly the small objects
+ * of each evaluated candidate: one LinearPredictiveEncoder per LPC order and channel, with its real and quantized
+ * coefficient arrays and its SizeEstimate, plus the per-frame FrameEncoder, channel lag sums and result arrays.
+ * This comes to about 11 KB per frame for both presets, down from several megabytes before the arenas.
+ * 
+ * The count comes from com.sun.management.ThreadMXBean.getThreadAllocatedBytes() where the JVM supports it.
+ * Otherwise this program falls back to the change in used heap, which is only meaningful if no garbage collection
+ * ran meanwhile, and is too coarse to check against the budget, so it is only printed.
+ * 
+ * Usage: java MeasureAllocation [NumFrames]
+ */
+public final class MeasureAllocation {
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length > 1) {
+			System.err.println("Usage: java MeasureAllocation [NumFrames]");
+			System.exit(1);
+			return;
+		}
+		int numFrames = args.length == 1 ? Integer.parseInt(args[0]) : 60;
+		if (numFrames <= 0)
+			throw new IllegalArgumentException("Number of frames must be positive");
+		
+		int[][] samples = makeSignal(numFrames * BLOCK_SIZE, 1);
+		File file = File.createTempFile("allocation", ".flac");
+		boolean exact = getThreadAllocatedBytes() != -1;
+		boolean overBudget = false;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			System.out.println("Counter: " + (exact ? "thread allocated bytes" : "used heap (fallback)"));
+			String[] names = {"SUBSET_BEST", "SUBSET_INSANE"};
+			SubframeEncoder.SearchOptions[] opts = {SubframeEncoder.SearchOptions.SUBSET_BEST, SubframeEncoder.SearchOptions.SUBSET_INSANE};
+			for (int i = 0; i < opts.length; i++) {
+				try (StreamingFlacEncoder enc = new StreamingFlacEncoder(raf, 44100, 2, 16, BLOCK_SIZE, opts[i])) {
+					enc.write(samples, 0, samples[0].length);  // Warm up the compiler and the scratch arrays
+					
+					long gcBefore = getCollectionCount();
+					long before = getAllocatedBytes();
+					enc.write(samples, 0, samples[0].length);
+					long after = getAllocatedBytes();
+					double perFrame = (double)(after - before) / numFrames;
+					
+					String note = "";
+					if (exact && perFrame > BUDGET_PER_FRAME) {
+						note = " (over the budget of " + BUDGET_PER_FRAME + ")";
+						overBudget = true;
+					} else if (!exact && getCollectionCount() != gcBefore) {
+						note = " (unreliable, a garbage collection ran)";
+					}
+					System.out.printf("%-13s %10.0f bytes per frame%s%n", names[i], perFrame, note);
+				}
+			}
+		} finally {
+			file.delete();
+		}
+		if (overBudget)
+			System.exit(2);
+	}
+	
+	
+	// Returns the bytes allocated by the current thread so far, or else the heap currently in use.
+	private static long getAllocatedBytes() {
+		long result = getThreadAllocatedBytes();
+		if (result != -1)
+			return result;
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+	
+	
+	// Returns the bytes allocated by the current thread so far, or -1 if the JVM cannot tell.
+	private static long getThreadAllocatedBytes() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+				if (sunBean.isThreadAllocatedMemorySupported()) {
+					if (!sunBean.isThreadAllocatedMemoryEnabled())
+						sunBean.setThreadAllocatedMemoryEnabled(true);
+					return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+				}
+			}
+		} catch (LinkageError | UnsupportedOperationException e) {}  // No com.sun.management on this JVM
+		return -1;
+	}
+	
+	
+	// Returns the total number of garbage collections so far, as far as the JVM reports them.
+	private static long getCollectionCount() {
+		long result = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+			result += Math.max(bean.getCollectionCount(), 0);
+		return result;
+	}
+	
+	
+	// Returns a stereo signal of two partially correlated tones with noise, at a moderate 16-bit level.
+	private static int[][] makeSignal(int numSamples, long seed) {
+		Random rand = new Random(seed);
+		int[][] result = new int[2][numSamples];
+		for (int i = 0; i < numSamples; i++) {
+			double t = i / 44100.0;
+			double common = 6000 * Math.sin(2 * Math.PI * 220 * t) + 2000 * Math.sin(2 * Math.PI * 1375 * t);
+			result[0][i] = (int)Math.round(common + 1500 * Math.sin(2 * Math.PI * 331 * t) + rand.nextGaussian() * 40);
+			result[1][i] = (int)Math.round(common * 0.8 + rand.nextGaussian() * 40);
+		}
+		return result;
+	}
+	
+	
+	private static final int BLOCK_SIZE = 4096;
+	
+	// The most bytes a frame of BLOCK_SIZE stereo samples may allocate in the steady state, with some headroom
+	// above the current figure. A regression to per-frame work arrays exceeds it by orders of magnitude.
+	private static final int BUDGET_PER_FRAME = 16 * 1024;
+	
+}
@@ -36,6 +36,8 @@ import com.ybene.unibo.comp.audio.flac.decode.DataFormatException;
 import com.ybene.unibo.comp.audio.flac.decode.FlacLowLevelInput;
 import com.ybene.unibo.comp.audio.flac.decode.FrameDecoder;
 import com.ybene.unibo.comp.audio.flac.decode.SeekableFileFlacInput;
+import com.ybene.unibo.comp.audio.flac.encode.FrameShortcut;
+import com.ybene.unibo.comp.audio.flac.encode.StereoModeEstimator;
 
 
 /**
@@ -91,7 +93,19 @@ import com.ybene.unibo.comp.audio.flac.decode.SeekableFileFlacInput;
  *Independent: **** (83)
  *Left-side  :  (3)
  *Right-side : ************************ (574)
- *Mid-side   : ****************************** (708)</pre>
+ *Mid-side   : ****************************** (708)
+ *
+ *===== Stereo mode preselection (predicted as actual) =====
+ *Agreed                 : ****************************** (1093)
+ *Independent as Mid-side: * (21)
+ *Mid-side as Right-side : ******** (254)
+ *
+ *===== Encoder shortcuts =====
+ *None         : ****************************** (1341)
+ *Constant     :  (5)
+ *Dual mono    : * (22)
+ *Inverted     :  (0)
+ *Low amplitude:  (0)</pre>
  */
 public final class ShowFlacFileStats {
 	
@@ -110,6 +124,8 @@ public final class ShowFlacFileStats {
 		List<Integer> blockSizes = new ArrayList<>();
 		List<Integer> frameSizes = new ArrayList<>();
 		List<Integer> channelAssignments = new ArrayList<>();
+		List<Integer> predictedAssignments = new ArrayList<>();
+		int[] shortcutCounts = new int[FrameShortcut.values().length];
 		
 		// Read input file
 		StreamInfo streamInfo = null;
@@ -132,6 +148,7 @@ public final class ShowFlacFileStats {
 			// Decode every frame
 			FrameDecoder dec = new FrameDecoder(input, streamInfo.sampleDepth);
 			int[][] blockSamples = new int[8][65536];
+			long[][] frameSamples = new long[streamInfo.numChannels][65536];
 			while (true) {
 				FrameInfo meta = dec.readFrame(blockSamples, 0);
 				if (meta == null)
@@ -139,6 +156,17 @@ public final class ShowFlacFileStats {
 				blockSizes.add(meta.blockSize);
 				frameSizes.add(meta.frameSize);
 				channelAssignments.add(meta.channelAssignment);
+				
+				// Replay the encoder's block classification and stereo mode heuristic on the decoded channels
+				for (int ch = 0; ch < frameSamples.length; ch++) {
+					for (int i = 0; i < meta.blockSize; i++)
+						frameSamples[ch][i] = blockSamples[ch][i];
+				}
+				shortcutCounts[FrameShortcut.classify(frameSamples, meta.blockSize).ordinal()]++;
+				if (streamInfo.numChannels == 2) {
+					predictedAssignments.add(StereoModeEstimator.predictChannelAssignment(
+						frameSamples[0], frameSamples[1], meta.blockSize));
+				}
 			}
 		}
 		
@@ -146,8 +174,11 @@ public final class ShowFlacFileStats {
 		printBlockSizeHistogram(blockSizes);
 		printFrameSizeHistogram(frameSizes);
 		printCompressionRatioGraph(streamInfo, blockSizes, frameSizes);
-		if (streamInfo.numChannels == 2)
+		if (streamInfo.numChannels == 2) {
 			printStereoModeGraph(channelAssignments);
+			printStereoPreselectionGraph(channelAssignments, predictedAssignments);
+		}
+		printShortcutGraph(shortcutCounts);
 	}
 	
 	
@@ -239,6 +270,56 @@ public final class ShowFlacFileStats {
 	}
 	
 	
+	// Compares the channel assignment that the encoder's stereo mode preselection would predict for each frame
+	// with the one actually stored in the file. When the file comes from an exhaustive stereo search, each
+	// disagreement is a frame where the preselection would have picked a suboptimal channel assignment.
+	private static void printStereoPreselectionGraph(List<Integer> channelAssignments, List<Integer> predictedAssignments) {
+		SortedMap<String,Integer> counts = new TreeMap<>();
+		int agreed = 0;
+		for (int i = 0; i < channelAssignments.size(); i++) {
+			int actual = channelAssignments.get(i);
+			int predicted = predictedAssignments.get(i);
+			if (predicted == actual)
+				agreed++;
+			else {
+				String key = getStereoModeName(predicted) + " as " + getStereoModeName(actual);
+				counts.put(key, counts.containsKey(key) ? counts.get(key) + 1 : 1);
+			}
+		}
+		List<String> labels = new ArrayList<>();
+		List<Double> values = new ArrayList<>();
+		labels.add("Agreed");
+		values.add((double)agreed);
+		for (Map.Entry<String,Integer> entry : counts.entrySet()) {
+			labels.add(entry.getKey());
+			values.add((double)entry.getValue());
+		}
+		printNormalizedBarGraph("Stereo mode preselection (predicted as actual)", labels, values);
+	}
+	
+	
+	// Counts the frames by the shortcut that the encoder takes for their block (see FrameShortcut),
+	// i.e. the frames whose encoding it picks without the full subframe search.
+	private static void printShortcutGraph(int[] shortcutCounts) {
+		List<String> labels = Arrays.asList("None", "Constant", "Dual mono", "Inverted", "Low amplitude");
+		List<Double> values = new ArrayList<>();
+		for (int count : shortcutCounts)
+			values.add((double)count);
+		printNormalizedBarGraph("Encoder shortcuts", labels, values);
+	}
+	
+	
+	private static String getStereoModeName(int channelAssignment) {
+		switch (channelAssignment) {
+			case  1:  return "Independent";
+			case  8:  return "Left-side";
+			case  9:  return "Right-side";
+			case 10:  return "Mid-side";
+			default:  throw new DataFormatException("Invalid mode in stereo stream");
+		}
+	}
+	
+	
 	
 	/*---- Utility functions ----*/
 	
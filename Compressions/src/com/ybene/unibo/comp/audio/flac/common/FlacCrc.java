@@ -0,0 +1,138 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.common;
+
+import java.util.Objects;
+
+
+/**
+ * Computes the two checksums used in FLAC frames: the CRC-8 of the frame header (polynomial
+ * 0x07) and the CRC-16 of the whole frame (polynomial 0x8005), both unreflected with a zero
+ * initial value. Byte ranges are processed eight bytes at a time with slicing-by-8 tables.
+ * All methods are pure functions; a running checksum is continued by passing the previous value.
+ */
+public final class FlacCrc {
+	
+	/*---- Static functions ----*/
+	
+	/**
+	 * Returns the CRC-8 obtained by continuing the specified CRC-8 value with the specified byte range.
+	 * @param crc the CRC-8 of the preceding bytes (a uint8 value), or 0 at the start
+	 * @param b the array of bytes to process (not {@code null})
+	 * @param off the index of the first byte to process
+	 * @param len the number of bytes to process
+	 * @return the updated CRC-8, a uint8 value
+	 * @throws NullPointerException if the array is {@code null}
+	 * @throws IndexOutOfBoundsException if the range is outside the array
+	 */
+	public static int update8(int crc, byte[] b, int off, int len) {
+		Objects.requireNonNull(b);
+		if (off < 0 || len < 0 || b.length - off < len)
+			throw new IndexOutOfBoundsException();
+		
+		int i = off;
+		for (int end = off + (len & ~7); i < end; i += 8) {
+			crc = CRC8_TABLES[7 * 256 + ((crc ^ b[i]) & 0xFF)]
+			    ^ CRC8_TABLES[6 * 256 + (b[i + 1] & 0xFF)]
+			    ^ CRC8_TABLES[5 * 256 + (b[i + 2] & 0xFF)]
+			    ^ CRC8_TABLES[4 * 256 + (b[i + 3] & 0xFF)]
+			    ^ CRC8_TABLES[3 * 256 + (b[i + 4] & 0xFF)]
+			    ^ CRC8_TABLES[2 * 256 + (b[i + 5] & 0xFF)]
+			    ^ CRC8_TABLES[1 * 256 + (b[i + 6] & 0xFF)]
+			    ^ CRC8_TABLES[0 * 256 + (b[i + 7] & 0xFF)];
+		}
+		for (int end = off + len; i < end; i++)
+			crc = CRC8_TABLES[(crc ^ b[i]) & 0xFF];
+		return crc;
+	}
+	
+	
+	/**
+	 * Returns the CRC-16 obtained by continuing the specified CRC-16 value with the specified byte range.
+	 * @param crc the CRC-16 of the preceding bytes (a uint16 value), or 0 at the start
+	 * @param b the array of bytes to process (not {@code null})
+	 * @param off the index of the first byte to process
+	 * @param len the number of bytes to process
+	 * @return the updated CRC-16, a uint16 value
+	 * @throws NullPointerException if the array is {@code null}
+	 * @throws IndexOutOfBoundsException if the range is outside the array
+	 */
+	public static int update16(int crc, byte[] b, int off, int len) {
+		Objects.requireNonNull(b);
+		if (off < 0 || len < 0 || b.length - off < len)
+			throw new IndexOutOfBoundsException();
+		
+		int i = off;
+		for (int end = off + (len & ~7); i < end; i += 8) {
+			crc = CRC16_TABLES[7 * 256 + (((crc >>> 8) ^ b[i]) & 0xFF)]
+			    ^ CRC16_TABLES[6 * 256 + ((crc ^ b[i + 1]) & 0xFF)]
+			    ^ CRC16_TABLES[5 * 256 + (b[i + 2] & 0xFF)]
+			    ^ CRC16_TABLES[4 * 256 + (b[i + 3] & 0xFF)]
+			    ^ CRC16_TABLES[3 * 256 + (b[i + 4] & 0xFF)]
+			    ^ CRC16_TABLES[2 * 256 + (b[i + 5] & 0xFF)]
+			    ^ CRC16_TABLES[1 * 256 + (b[i + 6] & 0xFF)]
+			    ^ CRC16_TABLES[0 * 256 + (b[i + 7] & 0xFF)];
+		}
+		for (int end = off + len; i < end; i++)
+			crc = CRC16_TABLES[((crc >>> 8) ^ b[i]) & 0xFF] ^ ((crc & 0xFF) << 8);
+		return crc;
+	}
+	
+	
+	
+	/*---- Tables of constants ----*/
+	
+	// Table k (at offset k * 256) holds the CRC of each byte value followed by k zero bytes.
+	// Table 0 is the classic byte-at-a-time table, and by linearity the CRC of an 8-byte
+	// chunk is the XOR of each byte's entry in the table matching its distance from the end.
+	
+	private static final int[] CRC8_TABLES  = new int[8 * 256];
+	private static final int[] CRC16_TABLES = new int[8 * 256];
+	
+	static {
+		for (int i = 0; i < 256; i++) {
+			int temp8 = i;
+			int temp16 = i << 8;
+			for (int j = 0; j < 8; j++) {
+				temp8 = (temp8 << 1) ^ ((temp8 >>> 7) * 0x107);
+				temp16 = (temp16 << 1) ^ ((temp16 >>> 15) * 0x18005);
+			}
+			CRC8_TABLES[i] = temp8;
+			CRC16_TABLES[i] = temp16;
+		}
+		for (int k = 1; k < 8; k++) {
+			for (int i = 0; i < 256; i++) {
+				int prev8 = CRC8_TABLES[(k - 1) * 256 + i];
+				int prev16 = CRC16_TABLES[(k - 1) * 256 + i];
+				CRC8_TABLES[k * 256 + i] = CRC8_TABLES[prev8];
+				CRC16_TABLES[k * 256 + i] = CRC16_TABLES[prev16 >>> 8] ^ ((prev16 & 0xFF) << 8);
+			}
+		}
+	}
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	private FlacCrc() {}  // Not instantiable
+	
+}
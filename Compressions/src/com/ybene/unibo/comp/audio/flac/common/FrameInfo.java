@@ -223,7 +223,7 @@ public final class FrameInfo {
 			case 6:  return in.readUint(8) + 1;
 			case 7:  return in.readUint(16) + 1;
 			default:
-				int result = searchSecond(BLOCK_SIZE_CODES, code);
+				int result = BLOCK_SIZES_BY_CODE[code];
 				if (result < 1 || result > 65536)
 					throw new AssertionError();
 				return result;
@@ -243,7 +243,7 @@ public final class FrameInfo {
 			case 14:  return in.readUint(16) * 10;
 			case 15:  throw new DataFormatException("Invalid sample rate");
 			default:
-				int result = searchSecond(SAMPLE_RATE_CODES, code);
+				int result = SAMPLE_RATES_BY_CODE[code];
 				if (result < 1 || result > 655350)
 					throw new AssertionError();
 				return result;
@@ -258,8 +258,8 @@ public final class FrameInfo {
 		else if (code == 0)
 			return -1;  // Caller should obtain value from stream info metadata block
 		else {
-			int result = searchSecond(SAMPLE_DEPTH_CODES, code);
-			if (result == -1)
+			int result = SAMPLE_DEPTHS_BY_CODE[code];
+			if (result == 0)
 				throw new DataFormatException("Reserved bit depth");
 			if (result < 1 || result > 32)
 				throw new AssertionError();
@@ -285,43 +285,103 @@ public final class FrameInfo {
 	 */
 	public void writeHeader(BitOutputStream out) throws IOException {
 		Objects.requireNonNull(out);
+		if (!(frameIndex != -1 && sampleOffset == -1) && !(sampleOffset != -1 && frameIndex == -1))
+			throw new IllegalStateException();
+		if ((channelAssignment >>> 4) != 0)
+			throw new IllegalStateException();
+		HeaderTemplate temp = HeaderTemplate.get(blockSize, sampleRate, sampleDepth);
+		
 		out.resetCrcs();
-		out.writeInt(14, 0x3FFE);  // Sync
-		out.writeInt(1, 0);  // Reserved
-		out.writeInt(1, 1);  // Blocking strategy
+		out.writeInt(16, 0xFFF9);  // Sync, reserved bit, blocking strategy
+		out.writeInt(8, temp.codesByte);
+		out.writeInt(8, channelAssignment << 4 | temp.depthBits);
+		writeUtf8Integer(sampleOffset, out);  // Variable-length: 1 to 7 bytes
+		out.writeInt(temp.suffixBits, temp.suffix);  // Variable-length: 0 to 4 bytes
+		out.writeInt(8, out.getCrc8());
+	}
+	
+	
+	/**
+	 * Returns the size in bytes of the frame header that {@link #writeHeader(BitOutputStream)} produces for the
+	 * specified field values, from the sync field through to the CRC-8 field (inclusive). This is a pure function
+	 * that performs no I/O, and the result is in the range 6 to 16.
+	 * @param blockSize the number of samples per channel, in the range 1 to 65536
+	 * @param sampleRate the sample rate in hertz, or &minus;1 if it is left to the stream info
+	 * @param sampleDepth the sample depth in bits, or &minus;1 if it is left to the stream info
+	 * @param sampleOffset the offset of the frame's first sample, a uint36 value
+	 * @return the size of the frame header in bytes
+	 * @throws IllegalArgumentException if any value is out of range
+	 */
+	public static int getHeaderSize(int blockSize, int sampleRate, int sampleDepth, long sampleOffset) {
+		if ((sampleOffset >>> 36) != 0)
+			throw new IllegalArgumentException();
+		int bitLen = 64 - Long.numberOfLeadingZeros(sampleOffset);
+		int utf8Len = bitLen <= 7 ? 1 : (bitLen - 2) / 5 + 1;
+		return 4 + utf8Len + HeaderTemplate.get(blockSize, sampleRate, sampleDepth).suffixBits / 8 + 1;
+	}
+	
+	
+	/* 
+	 * The parts of a frame header that only depend on the block size, sample rate and sample depth, which stay the same
+	 * across most frames of a stream. The channel assignment, the sample offset and the CRC are filled in by the writer.
+	 * Immutable structure. The most recently used template is cached, so the codes are normally computed once per stream.
+	 */
+	private static final class HeaderTemplate {
 		
-		int blockSizeCode = getBlockSizeCode(blockSize);
-		out.writeInt(4, blockSizeCode);
-		int sampleRateCode = getSampleRateCode(sampleRate);
-		out.writeInt(4, sampleRateCode);
+		public final int blockSize;
+		public final int sampleRate;
+		public final int sampleDepth;
 		
-		out.writeInt(4, channelAssignment);
-		out.writeInt(3, getSampleDepthCode(sampleDepth));
-		out.writeInt(1, 0);  // Reserved
+		public final int codesByte;  // Block size code and sample rate code, a uint8 value
+		public final int depthBits;  // Sample depth code and the reserved bit, a uint4 value
+		public final int suffix;  // The optional block size and sample rate fields following the sample offset
+		public final int suffixBits;  // 0, 8, 16, 24 or 32
 		
-		// Variable-length: 1 to 7 bytes
-		if (frameIndex != -1 && sampleOffset == -1)
-			writeUtf8Integer(sampleOffset, out);
-		else if (sampleOffset != -1 && frameIndex == -1)
-			writeUtf8Integer(sampleOffset, out);
-		else
-			throw new IllegalStateException();
+		private static volatile HeaderTemplate last = null;
 		
-		// Variable-length: 0 to 2 bytes
-		if (blockSizeCode == 6)
-			out.writeInt(8, blockSize - 1);
-		else if (blockSizeCode == 7)
-			out.writeInt(16, blockSize - 1);
 		
-		// Variable-length: 0 to 2 bytes
-		if (sampleRateCode == 12)
-			out.writeInt(8, sampleRate);
-		else if (sampleRateCode == 13)
-			out.writeInt(16, sampleRate);
-		else if (sampleRateCode == 14)
-			out.writeInt(16, sampleRate / 10);
+		public static HeaderTemplate get(int blockSize, int sampleRate, int sampleDepth) {
+			HeaderTemplate result = last;
+			if (result == null || result.blockSize != blockSize || result.sampleRate != sampleRate || result.sampleDepth != sampleDepth) {
+				result = new HeaderTemplate(blockSize, sampleRate, sampleDepth);
+				last = result;
+			}
+			return result;
+		}
+		
+		
+		private HeaderTemplate(int blockSize, int sampleRate, int sampleDepth) {
+			this.blockSize = blockSize;
+			this.sampleRate = sampleRate;
+			this.sampleDepth = sampleDepth;
+			int blockSizeCode = getBlockSizeCode(blockSize);
+			int sampleRateCode = getSampleRateCode(sampleRate);
+			codesByte = blockSizeCode << 4 | sampleRateCode;
+			depthBits = getSampleDepthCode(sampleDepth) << 1;  // Followed by the reserved bit 0
+			
+			long val = 0;
+			int bits = 0;
+			if (blockSizeCode == 6) {
+				val = blockSize - 1;
+				bits = 8;
+			} else if (blockSizeCode == 7) {
+				val = blockSize - 1;
+				bits = 16;
+			}
+			if (sampleRateCode == 12) {
+				val = val << 8 | sampleRate;
+				bits += 8;
+			} else if (sampleRateCode == 13) {
+				val = val << 16 | sampleRate;
+				bits += 16;
+			} else if (sampleRateCode == 14) {
+				val = val << 16 | sampleRate / 10;
+				bits += 16;
+			}
+			suffix = (int)val;
+			suffixBits = bits;
+		}
 		
-		out.writeInt(8, out.getCrc8());
 	}
 	
 	
@@ -343,7 +403,7 @@ public final class FrameInfo {
 	
 	// Returns a uint4 value representing the given block size. Pure function.
 	private static int getBlockSizeCode(int blockSize) {
-		int result = searchFirst(BLOCK_SIZE_CODES, blockSize);
+		int result = indexOf(BLOCK_SIZES_BY_CODE, blockSize);
 		if (result != -1);  // Already done
 		else if (1 <= blockSize && blockSize <= 256)
 			result = 6;
@@ -362,7 +422,7 @@ public final class FrameInfo {
 	private static int getSampleRateCode(int sampleRate) {
 		if (sampleRate == 0 || sampleRate < -1)
 			throw new IllegalArgumentException();
-		int result = searchFirst(SAMPLE_RATE_CODES, sampleRate);
+		int result = indexOf(SAMPLE_RATES_BY_CODE, sampleRate);
 		if (result != -1);  // Already done
 		else if (0 <= sampleRate && sampleRate < 256)
 			result = 12;
@@ -383,7 +443,7 @@ public final class FrameInfo {
 	private static int getSampleDepthCode(int sampleDepth) {
 		if (sampleDepth != -1 && (sampleDepth < 1 || sampleDepth > 32))
 			throw new IllegalArgumentException();
-		int result = searchFirst(SAMPLE_DEPTH_CODES, sampleDepth);
+		int result = indexOf(SAMPLE_DEPTHS_BY_CODE, sampleDepth);
 		if (result == -1)
 			result = 0;
 		if ((result >>> 3) != 0)
@@ -395,62 +455,34 @@ public final class FrameInfo {
 	
 	/*---- Tables of constants and search functions ----*/
 	
-	private static final int searchFirst(int[][] table, int key) {
-		for (int[] pair : table) {
-			if (pair[0] == key)
-				return pair[1];
+	// Returns the code (index) of the given value in the given table, or -1 if absent. Only used to build header templates.
+	private static final int indexOf(int[] table, int value) {
+		if (value <= 0)
+			return -1;
+		for (int i = 0; i < table.length; i++) {
+			if (table[i] == value)
+				return i;
 		}
 		return -1;
 	}
 	
 	
-	private static final int searchSecond(int[][] table, int key) {
-		for (int[] pair : table) {
-			if (pair[1] == key)
-				return pair[0];
-		}
-		return -1;
-	}
-	
+	// The values denoted by each code, indexed by code. Zero means that the code does not denote a value by itself.
 	
-	private static final int[][] BLOCK_SIZE_CODES = {
-		{  192,  1},
-		{  576,  2},
-		{ 1152,  3},
-		{ 2304,  4},
-		{ 4608,  5},
-		{  256,  8},
-		{  512,  9},
-		{ 1024, 10},
-		{ 2048, 11},
-		{ 4096, 12},
-		{ 8192, 13},
-		{16384, 14},
-		{32768, 15},
+	private static final int[] BLOCK_SIZES_BY_CODE = {
+		0, 192, 576, 1152, 2304, 4608, 0, 0,
+		256, 512, 1024, 2048, 4096, 8192, 16384, 32768,
 	};
 	
 	
-	private static final int[][] SAMPLE_DEPTH_CODES = {
-		{ 8, 1},
-		{12, 2},
-		{16, 4},
-		{20, 5},
-		{24, 6},
+	private static final int[] SAMPLE_DEPTHS_BY_CODE = {
+		0, 8, 12, 0, 16, 20, 24, 0,
 	};
 	
 	
-	private static final int[][] SAMPLE_RATE_CODES = {
-		{ 88200,  1},
-		{176400,  2},
-		{192000,  3},
-		{  8000,  4},
-		{ 16000,  5},
-		{ 22050,  6},
-		{ 24000,  7},
-		{ 32000,  8},
-		{ 44100,  9},
-		{ 48000, 10},
-		{ 96000, 11},
+	private static final int[] SAMPLE_RATES_BY_CODE = {
+		0, 88200, 176400, 192000, 8000, 16000, 22050, 24000,
+		32000, 44100, 48000, 96000, 0, 0, 0, 0,
 	};
 	
 }
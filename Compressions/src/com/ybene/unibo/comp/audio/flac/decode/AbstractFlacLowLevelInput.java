@@ -25,6 +25,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Objects;
+import com.ybene.unibo.comp.audio.flac.common.FlacCrc;
 
 
 /**
@@ -274,13 +275,10 @@ public abstract class AbstractFlacLowLevelInput implements FlacLowLevelInput {
 	// Updates the two CRC values with data in byteBuffer[crcStartIndex : byteBufferIndex - unusedTrailingBytes].
 	private void updateCrcs(int unusedTrailingBytes) {
 		int end = byteBufferIndex - unusedTrailingBytes;
-		for (int i = crcStartIndex; i < end; i++) {
-			int b = byteBuffer[i] & 0xFF;
-			crc8 = CRC8_TABLE[crc8 ^ b] & 0xFF;
-			crc16 = CRC16_TABLE[(crc16 >>> 8) ^ b] ^ ((crc16 & 0xFF) << 8);
-			assert (crc8 >>> 8) == 0;
-			assert (crc16 >>> 16) == 0;
-		}
+		crc8 = FlacCrc.update8(crc8, byteBuffer, crcStartIndex, end - crcStartIndex);
+		crc16 = FlacCrc.update16(crc16, byteBuffer, crcStartIndex, end - crcStartIndex);
+		assert (crc8 >>> 8) == 0;
+		assert (crc16 >>> 16) == 0;
 		crcStartIndex = end;
 	}
 	
@@ -332,23 +330,4 @@ public abstract class AbstractFlacLowLevelInput implements FlacLowLevelInput {
 		}
 	}
 	
-	
-	// For CRC calculations
-	
-	private static byte[] CRC8_TABLE  = new byte[256];
-	private static char[] CRC16_TABLE = new char[256];
-	
-	static {
-		for (int i = 0; i < CRC8_TABLE.length; i++) {
-			int temp8 = i;
-			int temp16 = i << 8;
-			for (int j = 0; j < 8; j++) {
-				temp8 = (temp8 << 1) ^ ((temp8 >>> 7) * 0x107);
-				temp16 = (temp16 << 1) ^ ((temp16 >>> 15) * 0x18005);
-			}
-			CRC8_TABLE[i] = (byte)temp8;
-			CRC16_TABLE[i] = (char)temp16;
-		}
-	}
-	
 }
@@ -25,30 +25,60 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import com.ybene.unibo.comp.audio.flac.common.StreamInfo;
 
 
 public final class AdvancedFlacEncoder {
 	
 	public AdvancedFlacEncoder(StreamInfo info, int[][] samples, int baseSize, int[] sizeMultiples, SubframeEncoder.SearchOptions opts, BitOutputStream out) throws IOException {
+		this(info, samples, baseSize, sizeMultiples, opts, out, null);
+	}
+	
+	// Encodes like the constructor above, but if the pool is not null then the size estimation phase (by far the most expensive one)
+	// is spread over its worker threads. The block positions are split recursively so that idle workers can steal ranges, which keeps
+	// the load balanced even though large size multiples cost more than small ones. Every cell of the estimate matrix is computed
+	// exactly as in the serial path, hence the dynamic programming result and the output are unchanged.
+	public AdvancedFlacEncoder(StreamInfo info, int[][] samples, int baseSize, int[] sizeMultiples, SubframeEncoder.SearchOptions opts, BitOutputStream out, ForkJoinPool pool) throws IOException {
 		int numSamples = samples[0].length;
+		FlacEncoder.checkSamples(samples, 0, numSamples, info.numChannels, info.sampleDepth);
+		
+		// The least squares analysis of every candidate block assembles its lag sums from those of its base blocks
+		LagSumCache lagSums = null;
+		
+		if (opts.lpcAnalysis == SubframeEncoder.LpcAnalysis.LEAST_SQUARES && opts.maxLpcOrder >= 1) {
+			lagSums = LagSumCache.build(samples, baseSize, opts.maxLpcOrder);
+		}
 		
 		// Calculate compressed sizes for many block positions and sizes
 		@SuppressWarnings("unchecked")
 		SizeEstimate<FrameEncoder>[][] encoderInfo = new SizeEstimate[sizeMultiples.length][(numSamples + baseSize - 1) / baseSize];
 		long startTime = System.currentTimeMillis();
 		
-		for (int i = 0; i < encoderInfo[0].length; i++) {
-			double progress = (double)i / encoderInfo[0].length;
-			double timeRemain = (System.currentTimeMillis() - startTime) / 1000.0 / progress * (1 - progress);
-			System.err.printf("\rprogress=%.2f%%    timeRemain=%ds", progress * 100, Math.round(timeRemain));
-			
-			int pos = i * baseSize;
+		if (pool == null) {
+			for (int i = 0; i < encoderInfo[0].length; i++) {
+				printProgress(i, encoderInfo[0].length, startTime);
+				computeEstimates(info, samples, baseSize, sizeMultiples, opts, lagSums, encoderInfo, i);
+			}
+		} else {
+			AtomicInteger completed = new AtomicInteger();
+			ForkJoinTask<Void> task = pool.submit(new EstimateTask(
+				info, samples, baseSize, sizeMultiples, opts, lagSums, encoderInfo, completed, 0, encoderInfo[0].length));
 			
-			for (int j = 0; j < encoderInfo.length; j++) {
-				int n = Math.min(sizeMultiples[j] * baseSize, numSamples - pos);
-				long[][] subsamples = getRange(samples, pos, n);
-				encoderInfo[j][i] = FrameEncoder.computeBest(pos, subsamples, info.sampleDepth, info.sampleRate, opts);
+			// Only wait and print here: a thread outside the pool that helps with the work (as awaitQuiescence() does)
+			// would fork the subtasks it takes into the common pool, and would stop printing while it computes
+			while (true) {
+				try {
+					FlacEncoder.getResult(task, 500, TimeUnit.MILLISECONDS);
+					break;
+				} catch (TimeoutException e) {
+					printProgress(completed.get(), encoderInfo[0].length, startTime);
+				}
 			}
 		}
 		
@@ -95,7 +125,7 @@ public final class AdvancedFlacEncoder {
 			
 			info.maxBlockSize = Math.max(n, info.maxBlockSize);
 			
-			long[][] subsamples = getRange(samples, pos, n);
+			long[][] subsamples = FlacEncoder.getRange(samples, pos, n);
 			long startByte = out.getByteCount();
 			bestEncoders[i].encode(subsamples, out);
 			i += (n + baseSize - 1) / baseSize;
@@ -116,18 +146,69 @@ public final class AdvancedFlacEncoder {
 		}
 	}
 	
-	// Returns the subrange array[ : ][off : off + len] upcasted to long.
-	private static long[][] getRange(int[][] array, int off, int len) {
-		long[][] result = new long[array.length][len];
-		for (int i = 0; i < array.length; i++) {
-			int[] src = array[i];
-			long[] dest = result[i];
-			
-			for (int j = 0; j < len; j++) {				
-				dest[j] = src[off + j];
-			}
+	// Fills column i of the estimate matrix, i.e. the frame encodings starting at block position i for every size multiple.
+	// If lagSums is not null, then the lag sums of each candidate block are taken from it.
+	private static void computeEstimates(StreamInfo info, int[][] samples, int baseSize, int[] sizeMultiples,
+			SubframeEncoder.SearchOptions opts, LagSumCache lagSums, SizeEstimate<FrameEncoder>[][] encoderInfo, int i) {
+		
+		int numSamples = samples[0].length;
+		int pos = i * baseSize;
+		
+		for (int j = 0; j < encoderInfo.length; j++) {
+			int n = Math.min(sizeMultiples[j] * baseSize, numSamples - pos);
+			long[][] subsamples = FlacEncoder.getRange(samples, pos, n);
+			encoderInfo[j][i] = FrameEncoder.computeBest(pos, subsamples, info.sampleDepth, info.sampleRate, opts,
+				lagSums != null ? lagSums.getLagSums(pos, n) : null);
+		}
+	}
+	
+	private static void printProgress(int done, int total, long startTime) {
+		double progress = (double)done / total;
+		double timeRemain = (System.currentTimeMillis() - startTime) / 1000.0 / progress * (1 - progress);
+		System.err.printf("\rprogress=%.2f%%    timeRemain=%ds", progress * 100, Math.round(timeRemain));
+	}
+	
+	// Computes the estimate matrix columns in the range [start, end) by recursive halving, for work stealing.
+	@SuppressWarnings("serial")
+	private static final class EstimateTask extends RecursiveAction {
+		
+		private final StreamInfo info;
+		private final int[][] samples;
+		private final int baseSize;
+		private final int[] sizeMultiples;
+		private final SubframeEncoder.SearchOptions opts;
+		private final LagSumCache lagSums;
+		private final SizeEstimate<FrameEncoder>[][] encoderInfo;
+		private final AtomicInteger completed;
+		private final int start;
+		private final int end;
+		
+		public EstimateTask(StreamInfo info, int[][] samples, int baseSize, int[] sizeMultiples, SubframeEncoder.SearchOptions opts,
+				LagSumCache lagSums, SizeEstimate<FrameEncoder>[][] encoderInfo, AtomicInteger completed, int start, int end) {
+			this.info = info;
+			this.samples = samples;
+			this.baseSize = baseSize;
+			this.sizeMultiples = sizeMultiples;
+			this.opts = opts;
+			this.lagSums = lagSums;
+			this.encoderInfo = encoderInfo;
+			this.completed = completed;
+			this.start = start;
+			this.end = end;
 		}
 		
-		return result;
+		protected void compute() {
+			if (end - start <= 1) {  // The range is empty only for an empty stream
+				if (end > start) {
+					computeEstimates(info, samples, baseSize, sizeMultiples, opts, lagSums, encoderInfo, start);
+					completed.incrementAndGet();
+				}
+			} else {
+				int mid = (start + end) >>> 1;
+				invokeAll(
+					new EstimateTask(info, samples, baseSize, sizeMultiples, opts, lagSums, encoderInfo, completed, start, mid),
+					new EstimateTask(info, samples, baseSize, sizeMultiples, opts, lagSums, encoderInfo, completed, mid, end));
+			}
+		}
 	}
 }
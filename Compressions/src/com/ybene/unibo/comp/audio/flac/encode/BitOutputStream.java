@@ -23,30 +23,60 @@ package com.ybene.unibo.comp.audio.flac.encode;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Objects;
+import com.ybene.unibo.comp.audio.flac.common.FlacCrc;
 
 /* 
  * A bit-oriented output stream, with other methods tailored for FLAC usage (such as CRC calculation).
+ * Whole bytes are collected in an internal buffer, which is only handed to the underlying
+ * stream or channel when it fills up or when flush() or close() is called.
  */
 
 public final class BitOutputStream implements AutoCloseable {
 	
 	/*---- Fields ----*/
 	
+	// Exactly one of these is not null until the stream is closed, and then both are null.
 	private OutputStream out;  // The underlying byte-based output stream to write to.
+	private FileChannel channel;  // The underlying file channel to write to, from its position at construction onward.
+	private final long channelStart;  // The channel position of the start of this stream, or 0 for an output stream.
+	
 	private long bitBuffer;  // Only the bottom bitBufferLen bits are valid; the top bits are garbage.
 	private int bitBufferLen;  // Always in the range [0, 64].
-	private long byteCount;  // Number of bytes written since the start of stream.
+	private long byteCount;  // Number of bytes moved out of the bit buffer since the start of stream.
+	
+	// Whole bytes not yet handed to the underlying stream or channel,
+	// which are the last bufferLen bytes counted by byteCount.
+	private final byte[] buffer;
+	private int bufferLen;  // Always in the range [0, buffer.length].
 	
-	// Current state of the CRC calculations.
+	// Current state of the CRC calculations, which cover the bytes before buffer[crcStartIndex]
+	// since the last reset. The bytes after it are added lazily, so that whole ranges are processed at once.
 	private int crc8;  // Always a uint8 value.
 	private int crc16;  // Always a uint16 value.
+	private int crcStartIndex;  // In the range [0, bufferLen].
 	
 	/*---- Constructors ----*/
 	
 	// Constructs a FLAC-oriented bit output stream from the given byte-based output stream.
 	public BitOutputStream(OutputStream out) throws IOException {
 		this.out = Objects.requireNonNull(out);
+		channelStart = 0;
+		buffer = new byte[1 << 13];
+		bitBuffer = 0;
+		bitBufferLen = 0;
+		byteCount = 0;
+		resetCrcs();
+	}
+	
+	// Constructs a FLAC-oriented bit output stream that writes to the given file channel, starting at its current position.
+	// Unlike the underlying stream of the other constructor, the channel supports rewrite() on any previously written bytes.
+	public BitOutputStream(FileChannel channel) throws IOException {
+		this.channel = Objects.requireNonNull(channel);
+		channelStart = channel.position();
+		buffer = new byte[1 << 16];
 		bitBuffer = 0;
 		bitBufferLen = 0;
 		byteCount = 0;
@@ -79,7 +109,7 @@ public final class BitOutputStream implements AutoCloseable {
 		}
 		
 		if (bitBufferLen + n > 64) {
-			flush();
+			drainBits();
 			assert bitBufferLen + n <= 64;
 		}
 		
@@ -90,45 +120,225 @@ public final class BitOutputStream implements AutoCloseable {
 		assert 0 <= bitBufferLen && bitBufferLen <= 64;
 	}
 	
-	// Writes out whole bytes from the bit buffer to the underlying stream. After this is done,
-	// only 0 to 7 bits remain in the bit buffer. Also updates the CRCs on each byte written.
+	// Writes the given number of zero bits followed by a single one bit, i.e. the unary code of n.
+	public void writeUnary(int n) throws IOException {
+		if (n < 0) {
+			throw new IllegalArgumentException();
+		}
+		
+		for (; n >= 32; n -= 32) {
+			writeBits(32, 0);
+		}
+		
+		writeBits(n + 1, 1);
+	}
+	
+	// Writes the lowest n bits of each value in data[start : end], so that it is equivalent to calling writeInt() on each one
+	// but also supports n = 33. This doesn't care whether the values represent signed or unsigned integers.
+	public void writeInts(int n, long[] data, int start, int end) throws IOException {
+		Objects.requireNonNull(data);
+		
+		if (n < 0 || n > 33) {
+			throw new IllegalArgumentException();
+		}
+		
+		if (start < 0 || start > end || end > data.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		
+		long mask = (1L << n) - 1;
+		
+		for (int i = start; i < end; i++) {
+			writeBits(n, data[i] & mask);
+		}
+	}
+	
+	// Writes each value in data[start : end] as a signed integer in Rice coding with the given parameter. Each value is
+	// mapped to the unsigned integer u (0, -1, 1, -2, ... become 0, 1, 2, 3, ...), and then written as the unary code of
+	// (u >>> param) followed by the lowest param bits of u. Each value must fit in a signed int53.
+	public void writeRiceSignedInts(int param, long[] data, int start, int end) throws IOException {
+		Objects.requireNonNull(data);
+		
+		if (param < 0 || param > 31) {
+			throw new IllegalArgumentException();
+		}
+		
+		if (start < 0 || start > end || end > data.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		
+		long lowMask = (1L << param) - 1;
+		
+		for (int i = start; i < end; i++) {
+			long val = data[i];
+			assert (val >> 52) == 0 || (val >> 52) == -1;  // Fits in a signed int53
+			
+			long unsigned = (val << 1) ^ (val >> 63);
+			long unary = unsigned >>> param;
+			
+			if (unary + 1 + param <= 56) {  // Usual case: the whole code fits in the bit buffer at once
+				writeBits((int)unary + 1 + param, (1L << param) | (unsigned & lowMask));
+			} else {
+				writeUnary((int)unary);
+				writeBits(param, unsigned & lowMask);
+			}
+		}
+	}
+	
+	// Appends the lowest n bits of val to the bit buffer, where n is in the range [0, 56]
+	// and the other bits of val are zero. Has no argument checks.
+	private void writeBits(int n, long val) throws IOException {
+		if (bitBufferLen + n > 64) {
+			drainBits();
+		}
+		
+		bitBuffer = (bitBuffer << n) | val;
+		bitBufferLen += n;
+	}
+	
+	/*-- Writing bytes --*/
+	
+	// Writes the given subarray of whole bytes to this bit output stream, which must be at a byte boundary.
+	// This is equivalent to calling writeInt(8, b[i]) for each byte, and the CRCs are updated accordingly.
+	public void write(byte[] b, int off, int len) throws IOException {
+		Objects.requireNonNull(b);
+		
+		if (off < 0 || len < 0 || b.length - off < len) {
+			throw new IndexOutOfBoundsException();
+		}
+		
+		checkByteAligned();
+		drainBits();
+		
+		if (buffer.length - bufferLen < len) {
+			writeBuffer();
+		}
+		
+		if (len >= buffer.length) {  // Bypass the buffer, which is now empty
+			crc8 = FlacCrc.update8(crc8, b, off, len);
+			crc16 = FlacCrc.update16(crc16, b, off, len);
+			writeUnderlying(b, off, len);
+		} else {
+			System.arraycopy(b, off, buffer, bufferLen, len);
+			bufferLen += len;
+		}
+		
+		byteCount += len;
+	}
+	
+	// Overwrites the bytes previously written at the given offset from the start of this stream (i.e. the value that
+	// getByteCount() had when they were written) with the given subarray. The whole range must have been written already,
+	// and either still be in the internal buffer or have gone to a file channel. The CRCs are not affected.
+	// This is meant for patching a header (such as the stream info block) once the data following it is known.
+	public void rewrite(long pos, byte[] b, int off, int len) throws IOException {
+		Objects.requireNonNull(b);
+		
+		if (off < 0 || len < 0 || b.length - off < len) {
+			throw new IndexOutOfBoundsException();
+		}
+		
+		drainBits();
+		
+		if (pos < 0 || pos > byteCount - len) {
+			throw new IndexOutOfBoundsException();
+		}
+		
+		long bufferStart = byteCount - bufferLen;
+		updateCrcs();  // Before the buffered bytes change
+		
+		if (pos >= bufferStart) {
+			System.arraycopy(b, off, buffer, (int)(pos - bufferStart), len);
+		} else if (channel != null) {
+			writeBuffer();
+			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+			
+			for (long p = channelStart + pos; buf.hasRemaining(); ) {
+				p += channel.write(buf, p);
+			}
+		} else {
+			throw new IllegalStateException("Bytes already passed to the output stream");
+		}
+	}
+	
+	// Writes out any whole bytes from the bit buffer and the internal buffer to the underlying stream or channel,
+	// and then flushes the underlying stream. After this is done, only 0 to 7 bits remain in the bit buffer.
 	public void flush() throws IOException {
-		while (bitBufferLen >= 8) {
+		drainBits();
+		writeBuffer();
+		
+		if (out != null) {
+			out.flush();
+		}
+	}
+	
+	// Moves whole bytes from the bit buffer to the internal buffer.
+	// After this is done, only 0 to 7 bits remain in the bit buffer.
+	private void drainBits() throws IOException {
+		int n = bitBufferLen >>> 3;
+		
+		if (buffer.length - bufferLen < n) {
+			writeBuffer();
+		}
+		
+		for (int i = 0; i < n; i++) {
 			bitBufferLen -= 8;
 			int b = (int)(bitBuffer >>> bitBufferLen) & 0xFF;
-			out.write(b);
-			byteCount++;
-			crc8 ^= b;
-			crc16 ^= b << 8;
+			buffer[bufferLen] = (byte)b;
+			bufferLen++;
+		}
+		
+		byteCount += n;
+		assert 0 <= bitBufferLen && bitBufferLen < 8;
+	}
+	
+	// Hands all the bytes of the internal buffer to the underlying stream or channel.
+	private void writeBuffer() throws IOException {
+		if (bufferLen > 0) {
+			updateCrcs();
+			writeUnderlying(buffer, 0, bufferLen);
+			bufferLen = 0;
+			crcStartIndex = 0;
+		}
+	}
+	
+	private void writeUnderlying(byte[] b, int off, int len) throws IOException {
+		if (out != null) {
+			out.write(b, off, len);
+		} else if (channel != null) {
+			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
 			
-			for (int i = 0; i < 8; i++) {
-				crc8 <<= 1;
-				crc16 <<= 1;
-				crc8 ^= (crc8 >>> 8) * 0x107;
-				crc16 ^= (crc16 >>> 16) * 0x18005;
-				assert (crc8 >>> 8) == 0;
-				assert (crc16 >>> 16) == 0;
+			while (buf.hasRemaining()) {
+				channel.write(buf);
 			}
+		} else {
+			throw new IllegalStateException("Stream closed");
 		}
-		
-		assert 0 <= bitBufferLen && bitBufferLen <= 64;
-		out.flush();
 	}
 	
 	/*-- CRC calculations --*/
 	
 	// Marks the current position (which must be byte-aligned) as the start of both CRC calculations.
 	public void resetCrcs() throws IOException {
-		flush();
+		drainBits();
 		crc8 = 0;
 		crc16 = 0;
+		crcStartIndex = bufferLen;
+	}
+	
+	// Adds the buffered bytes not yet covered to both CRCs.
+	private void updateCrcs() {
+		int len = bufferLen - crcStartIndex;
+		crc8 = FlacCrc.update8(crc8, buffer, crcStartIndex, len);
+		crc16 = FlacCrc.update16(crc16, buffer, crcStartIndex, len);
+		crcStartIndex = bufferLen;
 	}
 	
 	// Returns the CRC-8 hash of all the bytes written since the last call to resetCrcs()
 	// (or from the beginning of stream if reset was never called).
 	public int getCrc8() throws IOException {
 		checkByteAligned();
-		flush();
+		drainBits();
+		updateCrcs();
 		
 		if ((crc8 >>> 8) != 0) {			
 			throw new AssertionError();
@@ -142,7 +352,8 @@ public final class BitOutputStream implements AutoCloseable {
 	// (or from the beginning of stream if reset was never called).
 	public int getCrc16() throws IOException {
 		checkByteAligned();
-		flush();
+		drainBits();
+		updateCrcs();
 		if ((crc16 >>> 16) != 0)
 			throw new AssertionError();
 		return crc16;
@@ -155,17 +366,24 @@ public final class BitOutputStream implements AutoCloseable {
 		return byteCount + bitBufferLen / 8;
 	}
 	
-	// Writes out any internally buffered bit data, closes the underlying output stream, and invalidates this
+	// Writes out any internally buffered data, closes the underlying output stream or file channel, and invalidates this
 	// bit output stream object for any future operation. Note that a BitOutputStream only uses memory but
 	// does not have native resources. It is okay to flush() the pending data and simply let a BitOutputStream
 	// be garbage collected without calling close(), but the parent is still responsible for calling close()
 	// on the underlying output stream if it uses native resources (such as FileOutputStream or SocketOutputStream).
 	public void close() throws IOException {
-		if (out != null) {
+		if (out != null || channel != null) {
 			checkByteAligned();
 			flush();
-			out.close();
+			
+			if (out != null) {
+				out.close();
+			} else {
+				channel.close();
+			}
+			
 			out = null;
+			channel = null;
 		}
 	}
 }
@@ -68,6 +68,15 @@ final class ConstantEncoder extends SubframeEncoder {
 		writeRawSample(samples[0] >> sampleShift, out);
 	}
 	
+	void encode(long[] samples, long[] codedValues, BitOutputStream out) throws IOException {
+		if (codedValues == null) {
+			encode(samples, out);
+		} else {
+			writeTypeAndShift(0, out);
+			writeRawSample(codedValues[0] >> sampleShift, out);
+		}
+	}
+	
 	
 	// Returns true iff the set of unique values in the array has size exactly 1. Pure function.
 	private static boolean isConstant(long[] data) {
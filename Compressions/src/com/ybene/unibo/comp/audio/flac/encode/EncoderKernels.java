@@ -0,0 +1,209 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.encode;
+
+/* 
+ * The innermost data-parallel loops of the encoder: the LPC convolution, the lag products of the autocorrelation,
+ * the per-partition magnitude sums of the Rice size estimation, and the mid/side split. Each kernel has a scalar form
+ * in this class, written in Java 8 as plain counted loops that the JIT compiler can partly vectorize, and a vector form
+ * in the class VectorKernels, written with the jdk.incubator.vector API. The latter lives in the separate source root
+ * src-java16, is compiled by a JDK 16 or later with javac --add-modules jdk.incubator.vector (the --release option
+ * cannot be combined with incubator modules), and is packaged under META-INF/versions/16/ of a JAR whose manifest says
+ * "Multi-Release: true" (jar --create ... --release 16 -C <java16 classes> .), so Java 8 runtimes never see it.
+ * 
+ * The vector kernels are loaded reflectively when this class is initialized. They are used if the class is present and
+ * the module resolves (i.e. the JVM runs with --add-modules jdk.incubator.vector), unless the system property named by
+ * KERNELS_PROPERTY is set to "scalar"; otherwise the scalar kernels are used. Both forms return exactly the same results,
+ * so the encoded output never depends on the runtime.
+ */
+public final class EncoderKernels {
+	
+	/*---- Kernel selection ----*/
+	
+	// The name of the system property that can force the scalar kernels, read once when this class is initialized.
+	public static final String KERNELS_PROPERTY = "com.ybene.unibo.comp.audio.flac.encode.kernels";
+	
+	// The vector kernels, or null if they are unavailable or disabled.
+	private static final Implementation VECTOR = loadVectorKernels();
+	
+	// Returns "vector" or "scalar", telling which kernels this JVM uses.
+	public static String getImplementation() {
+		return VECTOR != null ? "vector" : "scalar";
+	}
+	
+	private static Implementation loadVectorKernels() {
+		if ("scalar".equals(System.getProperty(KERNELS_PROPERTY))) {
+			return null;
+		}
+		
+		try {
+			return (Implementation)Class.forName(EncoderKernels.class.getPackage().getName() + ".VectorKernels")
+				.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+			return null;  // Not packaged for this runtime, or the incubator module is not resolved
+		}
+	}
+	
+	/*---- Static functions ----*/
+	
+	// Public only so that BenchmarkKernels in the app package can time them, since the encoder is their only other caller.
+	
+	// For each i in [order, length) where order = coefs.length, sets dest[i] = x[i] - ((x[i-1]*coefs[0]
+	// + ... + x[i-order]*coefs[order-1]) >> shift), and copies dest[i] = x[i] for i in [0, order). If narrow is true,
+	// then the caller guarantees that every dot product and partial sum fits in a signed int32, and the products are
+	// accumulated in 32 bits; otherwise they are accumulated in 64 bits.
+	public static void applyLpc(int[] x, int length, int[] coefs, int shift, boolean narrow, long[] dest) {
+		if (VECTOR != null) {
+			VECTOR.applyLpc(x, length, coefs, shift, narrow, dest);
+		} else {
+			applyLpcScalar(x, length, coefs, shift, narrow, dest);
+		}
+	}
+	
+	// Returns the sum of data[j] * data[j + lag] over all j in [0, data.length - lag), computed in floating point
+	// by adding the products in increasing order of j.
+	public static double lagSum(long[] data, int lag) {
+		return VECTOR != null ? VECTOR.lagSum(data, lag) : lagSumScalar(data, lag);
+	}
+	
+	// Sets sums[p] to the sum of the zigzag-mapped values (2v for v >= 0, -2v-1 for v < 0) of partition p, which is
+	// data[max(p * partSize, warmup) : (p + 1) * partSize], for each p in [0, data.length / partSize). Returns the
+	// bitwise OR of all the mapped values, which bounds their magnitude. Every value must fit in a signed int63.
+	public static long zigzagPartitionSums(long[] data, int warmup, int partSize, long[] sums) {
+		return VECTOR != null ? VECTOR.zigzagPartitionSums(data, warmup, partSize, sums) : zigzagPartitionSumsScalar(data, warmup, partSize, sums);
+	}
+	
+	// Sets mid[i] = (left[i] + right[i]) >> 1 and side[i] = left[i] - right[i] for each i in [0, length).
+	public static void splitMidSide(long[] left, long[] right, int length, long[] mid, long[] side) {
+		if (VECTOR != null) {
+			VECTOR.splitMidSide(left, right, length, mid, side);
+		} else {
+			splitMidSideScalar(left, right, length, mid, side);
+		}
+	}
+	
+	/*-- Scalar kernels, also used by the vector ones for the cases they do not cover --*/
+	
+	static void applyLpcScalar(int[] x, int length, int[] coefs, int shift, boolean narrow, long[] dest) {
+		int order = coefs.length;
+		
+		for (int i = 0; i < order; i++) {
+			dest[i] = x[i];
+		}
+		
+		if (narrow) {
+			// Accumulate one coefficient at a time across the whole block, so that each pass is a simple multiply-add loop
+			int[] acc = ScratchArena.get().intArray(ScratchArena.LPC_SUMS, length);
+			
+			for (int i = order; i < length; i++) {
+				acc[i] = 0;
+			}
+			
+			for (int j = 0; j < order; j++) {
+				int c = coefs[j];
+				
+				for (int i = order, k = order - 1 - j; i < length; i++, k++) {
+					acc[i] += x[k] * c;
+				}
+			}
+			
+			for (int i = order; i < length; i++) {
+				dest[i] = x[i] - (long)(acc[i] >> shift);
+			}
+		} else {
+			// Same scheme, using the destination itself as the 64-bit accumulator
+			for (int i = order; i < length; i++) {
+				dest[i] = 0;
+			}
+			
+			for (int j = 0; j < order; j++) {
+				long c = coefs[j];
+				
+				for (int i = order, k = order - 1 - j; i < length; i++, k++) {
+					dest[i] += x[k] * c;
+				}
+			}
+			
+			for (int i = order; i < length; i++) {
+				dest[i] = x[i] - (dest[i] >> shift);
+			}
+		}
+	}
+	
+	static double lagSumScalar(long[] data, int lag) {
+		double sum = 0;
+		
+		for (int j = 0, n = data.length - lag; j < n; j++) {
+			sum += (double)data[j] * data[j + lag];
+		}
+		
+		return sum;
+	}
+	
+	static long zigzagPartitionSumsScalar(long[] data, int warmup, int partSize, long[] sums) {
+		int numPartitions = data.length / partSize;
+		long accumulator = 0;
+		
+		for (int p = 0, start = 0; p < numPartitions; p++, start += partSize) {
+			long sum = 0;
+			
+			for (int i = Math.max(start, warmup), end = start + partSize; i < end; i++) {
+				long val = data[i];
+				val = (val << 1) ^ (val >> 63);
+				sum += val;
+				accumulator |= val;
+			}
+			
+			sums[p] = sum;
+		}
+		
+		return accumulator;
+	}
+	
+	static void splitMidSideScalar(long[] left, long[] right, int length, long[] mid, long[] side) {
+		for (int i = 0; i < length; i++) {
+			long l = left[i];
+			long r = right[i];
+			mid[i] = (l + r) >> 1;
+			side[i] = l - r;
+		}
+	}
+	
+	/*---- Helper interface ----*/
+	
+	// The kernels with the contracts of the static functions above, as implemented by VectorKernels.
+	interface Implementation {
+		
+		void applyLpc(int[] x, int length, int[] coefs, int shift, boolean narrow, long[] dest);
+		
+		double lagSum(long[] data, int lag);
+		
+		long zigzagPartitionSums(long[] data, int warmup, int partSize, long[] sums);
+		
+		void splitMidSide(long[] left, long[] right, int length, long[] mid, long[] side);
+		
+	}
+	
+	/*---- Constructors ----*/
+	
+	private EncoderKernels() {}  // Not instantiable
+}
@@ -57,13 +57,20 @@ final class FastDotProduct {
 		// Precompute some dot products
 		precomputed = new double[maxDelta + 1];
 		for (int i = 0; i < precomputed.length; i++) {
-			double sum = 0;
-			
-			for (int j = 0; i + j < data.length; j++) {
-				sum += (double)data[j] * data[i + j];				
-			}
-			
-			precomputed[i] = sum;
+			precomputed[i] = EncoderKernels.lagSum(data, i);
+		}
+	}
+	
+	// Constructs a fast dot product calculator over the given array, using the given lag sums instead of computing them,
+	// where precomputed[i] must equal dotProduct(0, i, data.length - i) (up to rounding) and precomputed.length <= data.length.
+	// Both arrays are saved by reference, under the same rules as above.
+	public FastDotProduct(long[] data, double[] precomputed) {
+		// Check arguments
+		this.data = Objects.requireNonNull(data);
+		this.precomputed = Objects.requireNonNull(precomputed);
+		
+		if (precomputed.length == 0 || precomputed.length > data.length) {
+			throw new IllegalArgumentException();
 		}
 	}
 	
@@ -22,6 +22,7 @@
 package com.ybene.unibo.comp.audio.flac.encode;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Objects;
 
 /* 
@@ -31,20 +32,185 @@ final class FixedPredictionEncoder extends SubframeEncoder {
 	
 	// Computes the best way to encode the given values under the fixed prediction coding mode of the given order,
 	// returning a size plus a new encoder object associated with the input arguments. The maxRiceOrder argument
-	// is used by the Rice encoder to estimate the size of coding the residual signal.
-	public static SizeEstimate<SubframeEncoder> computeBest(long[] samples, int shift, int depth, int order, int maxRiceOrder) {
+	// is used by the Rice encoder to estimate the size of coding the residual signal. The coded values (warm-up samples
+	// and residual) are stored into codedValues, and the chosen Rice parameters into params (see SubframeEncoder.computeBest()).
+	// If estimateRice is true, then the Rice coding size is only estimated and params is left untouched (see recomputeRiceSize()).
+	// If shifted is not null, then it holds the shifted samples for the int kernels.
+	public static SizeEstimate<SubframeEncoder> computeBest(long[] samples, int shift, IntSignal shifted, int depth, int order, int maxRiceOrder, boolean estimateRice, long[] codedValues, int[] params) {
 		FixedPredictionEncoder enc = new FixedPredictionEncoder(samples, shift, depth, order);
-		samples = LinearPredictiveEncoder.shiftRight(samples, shift);
-		LinearPredictiveEncoder.applyLpc(samples, COEFFICIENTS[order], 0);
-		long temp = RiceEncoder.computeBestSizeAndOrder(samples, order, maxRiceOrder);
+		LinearPredictiveEncoder.computeResidual(samples, shift, shifted, COEFFICIENTS[order], 0, codedValues);
+		long temp = estimateRice
+			? RiceEncoder.estimateBestSizeAndOrder(codedValues, order, maxRiceOrder)
+			: RiceEncoder.computeBestSizeAndOrder(codedValues, order, maxRiceOrder, params);
 		enc.riceOrder = (int)(temp & 0xF);
 		long size = 1 + 6 + 1 + shift + order * depth + (temp >>> 4);
 		
 		return new SizeEstimate<SubframeEncoder>(size, enc);
 	}
 	
+	// Computes the best encoding among the fixed prediction orders minOrder to maxOrder, with ties going to the lower order,
+	// and stores its coded values and Rice parameters like the method above. The residuals of all orders are successive
+	// differences of the shifted samples, so a single pass over the block derives every order's residual on the fly and
+	// accumulates its Rice statistics at the finest partition order. Only the winner's residual is then written out.
+	// The result is the same as calling the method above for each order and keeping the smallest.
+	public static SizeEstimate<SubframeEncoder> computeBest(long[] samples, int shift, IntSignal shifted, int depth, int minOrder, int maxOrder,
+			int maxRiceOrder, boolean estimateRice, long[] codedValues, int[] params) {
+		
+		if (minOrder < 0 || minOrder > maxOrder || maxOrder >= COEFFICIENTS.length || samples.length < maxOrder) {
+			throw new IllegalArgumentException();
+		}
+		
+		int n = samples.length;
+		int finestOrder = RiceEncoder.getFinestPartitionOrder(n, maxOrder, maxRiceOrder);
+		int numOrders = maxOrder - minOrder + 1;
+		long[] sizes = null;
+		
+		// A shorter warm-up could allow finer partitions, which the shared pass does not provide
+		if (RiceEncoder.getFinestPartitionOrder(n, minOrder, maxRiceOrder) == finestOrder) {
+			sizes = estimateRice
+				? estimateAllOrders(samples, shift, minOrder, numOrders, finestOrder)
+				: computeAllOrders(samples, shift, minOrder, numOrders, finestOrder);
+		}
+		
+		if (sizes == null) {  // Evaluate each order separately
+			sizes = new long[numOrders];
+			
+			for (int i = 0; i < numOrders; i++) {
+				int order = minOrder + i;
+				SizeEstimate<SubframeEncoder> temp = computeBest(samples, shift, shifted, depth, order, maxRiceOrder, estimateRice, codedValues, null);
+				sizes[i] = (temp.sizeEstimate - subframeSize(0, order, shift, depth)) << 4 | ((FixedPredictionEncoder)temp.encoder).riceOrder;
+			}
+		}
+		
+		int best = 0;
+		
+		for (int i = 1; i < numOrders; i++) {
+			if (subframeSize(sizes[i], minOrder + i, shift, depth) < subframeSize(sizes[best], minOrder + best, shift, depth)) {
+				best = i;
+			}
+		}
+		
+		// Write out the winner's coded values and find its Rice parameters
+		int bestOrder = minOrder + best;
+		FixedPredictionEncoder enc = new FixedPredictionEncoder(samples, shift, depth, bestOrder);
+		LinearPredictiveEncoder.computeResidual(samples, shift, shifted, COEFFICIENTS[bestOrder], 0, codedValues);
+		long temp = sizes[best];
+		
+		if (!estimateRice) {
+			temp = RiceEncoder.computeBestSizeAndOrder(codedValues, bestOrder, maxRiceOrder, params);
+		}
+		
+		enc.riceOrder = (int)(temp & 0xF);
+		return new SizeEstimate<SubframeEncoder>(subframeSize(temp, bestOrder, shift, depth), enc);
+	}
+	
+	// Returns the subframe size of fixed prediction of the given order, given its packed Rice coding size and order.
+	private static long subframeSize(long riceSizeAndOrder, int order, int shift, int depth) {
+		return 1 + 6 + 1 + shift + order * depth + (riceSizeAndOrder >>> 4);
+	}
+	
+	// Returns the packed Rice coding sizes and orders (see RiceEncoder.computeBestSizeAndOrder()) of the fixed prediction
+	// orders minOrder to minOrder + numOrders - 1, from a single pass that accumulates the statistics of every order.
+	private static long[] computeAllOrders(long[] samples, int shift, int minOrder, int numOrders, int finestOrder) {
+		int n = samples.length;
+		int numPartitions = 1 << finestOrder;
+		int partSize = n >>> finestOrder;
+		int stride = numPartitions * 16;
+		ScratchArena scratch = ScratchArena.get();
+		int[] escapeBits = scratch.intArray(ScratchArena.FIXED_ESCAPE_BITS, numOrders * numPartitions);
+		long[] bitsAtParam = scratch.longArray(ScratchArena.FIXED_BITS_AT_PARAM, numOrders * stride);
+		Arrays.fill(escapeBits, 0);
+		Arrays.fill(bitsAtParam, 0);
+		long[] diffs = new long[5];  // diffs[k] is the order-k residual of the current sample
+		
+		for (int i = 0; i < n; i++) {
+			nextDifferences(samples[i] >> shift, diffs);
+			
+			int j = i / partSize;
+			
+			for (int o = 0; o < numOrders && minOrder + o <= i; o++) {
+				long val = diffs[minOrder + o];
+				int e = o * numPartitions + j;
+				escapeBits[e] = Math.max(65 - Long.numberOfLeadingZeros(val ^ (val >> 63)), escapeBits[e]);
+				val = (val << 1) ^ (val >> 63);
+				
+				for (int param = 0, b = o * stride + j * 16; param < 15; param++, val >>>= 1) {
+					bitsAtParam[b + param] += val + 1 + param;
+				}
+			}
+		}
+		
+		long[] result = new long[numOrders];
+		int[] orderEscapeBits = scratch.intArray(ScratchArena.RICE_ESCAPE_BITS, numPartitions);
+		long[] orderBitsAtParam = scratch.longArray(ScratchArena.RICE_BITS_AT_PARAM, stride);
+		
+		for (int o = 0; o < numOrders; o++) {
+			System.arraycopy(escapeBits, o * numPartitions, orderEscapeBits, 0, numPartitions);
+			System.arraycopy(bitsAtParam, o * stride, orderBitsAtParam, 0, stride);
+			result[o] = RiceEncoder.searchPartitionOrders(orderEscapeBits, orderBitsAtParam, n, minOrder + o, finestOrder, null);
+		}
+		
+		return result;
+	}
+	
+	// Same as above, but with estimated Rice coding sizes (see RiceEncoder.estimateBestSizeAndOrder()). Returns null if
+	// some residual is too large for the estimate, in which case the orders must be evaluated separately.
+	private static long[] estimateAllOrders(long[] samples, int shift, int minOrder, int numOrders, int finestOrder) {
+		int n = samples.length;
+		int numPartitions = 1 << finestOrder;
+		int partSize = n >>> finestOrder;
+		long[] sums = ScratchArena.get().longArray(ScratchArena.FIXED_SUMS, numOrders * numPartitions);
+		Arrays.fill(sums, 0);
+		long[] diffs = new long[5];
+		long accumulator = 0;
+		
+		for (int i = 0; i < n; i++) {
+			nextDifferences(samples[i] >> shift, diffs);
+			
+			int j = i / partSize;
+			
+			for (int o = 0; o < numOrders && minOrder + o <= i; o++) {
+				long val = diffs[minOrder + o];
+				val = (val << 1) ^ (val >> 63);
+				sums[o * numPartitions + j] += val;
+				accumulator |= val;
+			}
+		}
+		
+		// Same bound as in RiceEncoder.estimateBestSizeAndOrder()
+		if ((accumulator >>> 46) != 0) {
+			return null;
+		}
+		
+		long[] result = new long[numOrders];
+		long[] orderSums = ScratchArena.get().longArray(ScratchArena.RICE_SUMS, numPartitions);
+		
+		for (int o = 0; o < numOrders; o++) {
+			System.arraycopy(sums, o * numPartitions, orderSums, 0, numPartitions);
+			result[o] = RiceEncoder.estimatePartitionOrders(orderSums, n, minOrder + o, finestOrder);
+		}
+		
+		return result;
+	}
+	
+	// Advances the successive differences from the previous sample to the next one, whose value is x. Before the call
+	// diffs[k] is the order-k difference at the previous sample, and after it the one at the next sample.
+	private static void nextDifferences(long x, long[] diffs) {
+		long d0 = x;
+		long d1 = d0 - diffs[0];
+		long d2 = d1 - diffs[1];
+		long d3 = d2 - diffs[2];
+		long d4 = d3 - diffs[3];
+		diffs[0] = d0;
+		diffs[1] = d1;
+		diffs[2] = d2;
+		diffs[3] = d3;
+		diffs[4] = d4;
+	}
+	
 	private final int order;
 	public int riceOrder;
+	private int[] riceParams;  // Can be null if unknown
 	
 	public FixedPredictionEncoder(long[] samples, int shift, int depth, int order) {
 		super(shift, depth);
@@ -57,23 +223,39 @@ final class FixedPredictionEncoder extends SubframeEncoder {
 	}
 	
 	public void encode(long[] samples, BitOutputStream out) throws IOException {
-		Objects.requireNonNull(samples);
+		encode(samples, null, out);
+	}
+	
+	void encode(long[] samples, long[] codedValues, BitOutputStream out) throws IOException {
 		Objects.requireNonNull(out);
 		
-		if (samples.length < order) {
-			throw new IllegalArgumentException();			
+		if (codedValues == null) {
+			Objects.requireNonNull(samples);
+			
+			if (samples.length < order) {
+				throw new IllegalArgumentException();			
+			}
+			
+			codedValues = LinearPredictiveEncoder.shiftRight(samples, sampleShift, ScratchArena.get().longArray(ScratchArena.SHIFTED, samples.length));
+			LinearPredictiveEncoder.applyLpc(codedValues, COEFFICIENTS[order], 0);
 		}
 		
 		writeTypeAndShift(8 + order, out);
-		samples = LinearPredictiveEncoder.shiftRight(samples, sampleShift);
 		
-		// Warmup
-		for (int i = 0; i < order; i++) {			
-			writeRawSample(samples[i], out);
-		}
+		// Warmup (left untouched by the prediction)
+		writeRawSamples(codedValues, 0, order, out);
 		
-		LinearPredictiveEncoder.applyLpc(samples, COEFFICIENTS[order], 0);
-		RiceEncoder.encode(samples, order, riceOrder, out);
+		RiceEncoder.encode(codedValues, order, riceOrder, riceParams, out);
+	}
+	
+	long recomputeRiceSize(long size, long[] codedValues, int maxRiceOrder, int[] params) {
+		long temp = RiceEncoder.computeBestSizeAndOrder(codedValues, order, maxRiceOrder, params);
+		riceOrder = (int)(temp & 0xF);
+		return 1 + 6 + 1 + sampleShift + order * sampleDepth + (temp >>> 4);
+	}
+	
+	void retainRiceParams(int[] params) {
+		riceParams = Arrays.copyOf(params, 1 << riceOrder);
 	}
 	
 	// The linear predictive coding (LPC) coefficients for fixed prediction of orders 0 to 4 (inclusive).
@@ -21,13 +21,45 @@
 
 package com.ybene.unibo.comp.audio.flac.encode;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import com.ybene.unibo.comp.audio.flac.common.StreamInfo;
 
 
 public final class FlacEncoder {
 	
 	public FlacEncoder(StreamInfo info, int[][] samples, int blockSize, SubframeEncoder.SearchOptions opt, BitOutputStream out) throws IOException {
+		this(info, samples, blockSize, opt, out, null);
+	}
+	
+	// Encodes all frames like the constructor above, but if the executor is not null then the per-block search and the
+	// bitstream generation of each frame run as concurrent tasks on it. Every task encodes its frame into a private byte buffer,
+	// and the buffers are appended to the output stream strictly in order, so the result is bit-identical to the serial path.
+	// Only a bounded window of frames is in flight at once. The executor is not shut down by this constructor.
+	public FlacEncoder(StreamInfo info, int[][] samples, int blockSize, SubframeEncoder.SearchOptions opt, BitOutputStream out, ExecutorService executor) throws IOException {
+		this(info, samples, blockSize, opt, out, executor, null);
+	}
+	
+	// Encodes like the constructor above, but if searchExecutor is not null then the search within each frame (its channels and
+	// their LPC orders) is also spread over that executor, which shortens the time to each frame rather than raising the throughput
+	// of many frames. It must be a different executor than the frame one, and the output stays bit-identical to the serial path.
+	public FlacEncoder(StreamInfo info, int[][] samples, int blockSize, SubframeEncoder.SearchOptions opt, BitOutputStream out,
+			ExecutorService executor, ExecutorService searchExecutor) throws IOException {
+		
+		if (executor != null && executor == searchExecutor) {
+			throw new IllegalArgumentException("Search executor must differ from the frame executor");
+		}
+		
+		checkSamples(samples, 0, samples[0].length, info.numChannels, info.sampleDepth);
 		
 		// StreamInfo
 		info.minBlockSize = blockSize;
@@ -35,6 +67,14 @@ public final class FlacEncoder {
 		info.minFrameSize = 0;
 		info.maxFrameSize = 0;
 		
+		if (executor == null) {
+			encodeSerial(info, samples, blockSize, opt, out, searchExecutor);
+		} else {
+			encodeParallel(info, samples, blockSize, opt, out, executor, searchExecutor);
+		}
+	}
+	
+	private static void encodeSerial(StreamInfo info, int[][] samples, int blockSize, SubframeEncoder.SearchOptions opt, BitOutputStream out, ExecutorService searchExecutor) throws IOException {
 		// Encoding all frames
 		int pos = 0;
 		
@@ -47,30 +87,156 @@ public final class FlacEncoder {
 			// Getting sub samples for the current frame
 			long[][] subsamples = getRange(samples, pos, n);
 			
-			FrameEncoder enc = FrameEncoder.computeBest(pos, subsamples, info.sampleDepth, info.sampleRate, opt).encoder;
+			FrameEncoder enc = FrameEncoder.computeBest(pos, subsamples, info.sampleDepth, info.sampleRate, opt, null, searchExecutor).encoder;
 			long startByte = out.getByteCount();
 			enc.encode(subsamples, out);
-			long frameSize = out.getByteCount() - startByte;
+			updateFrameSizes(info, out.getByteCount() - startByte);
 			
-			if (frameSize < 0 || (int)frameSize != frameSize) {				
-				throw new AssertionError();
+			pos += n;
+		}
+	}
+	
+	private static void encodeParallel(StreamInfo info, final int[][] samples, int blockSize, final SubframeEncoder.SearchOptions opt, BitOutputStream out, ExecutorService executor, ExecutorService searchExecutor) throws IOException {
+		int numSamples = samples[0].length;
+		final int sampleDepth = info.sampleDepth;
+		final int sampleRate = info.sampleRate;
+		int maxPending = Runtime.getRuntime().availableProcessors() * 4;
+		Deque<Future<byte[]>> pending = new ArrayDeque<>();
+		int submitPos = 0;
+		int writePos = 0;
+		
+		try {
+			for (int i = 0; writePos < numSamples; ) {
+				// Keep the window of in-flight frames full
+				if (submitPos < numSamples && pending.size() < maxPending) {
+					final int pos = submitPos;
+					final int n = Math.min(numSamples - pos, blockSize);
+					pending.add(executor.submit(() -> encodeFrame(samples, pos, n, sampleDepth, sampleRate, opt, searchExecutor)));
+					submitPos += n;
+					continue;
+				}
+				
+				// Append the oldest frame to the output
+				System.err.printf("frame=%d  position=%d  %.2f%%%n", i, writePos, 100.0 * writePos / numSamples);
+				byte[] frame = getResult(pending.remove());
+				out.write(frame, 0, frame.length);
+				updateFrameSizes(info, frame.length);
+				writePos += Math.min(numSamples - writePos, blockSize);
+				i++;
 			}
-			
-			if (info.minFrameSize == 0 || frameSize < info.minFrameSize) {
-				info.minFrameSize = (int)frameSize;				
+		} catch (IOException | RuntimeException e) {
+			// Stop the frames still in flight, whose results would be discarded anyway
+			for (Future<byte[]> f : pending) {
+				f.cancel(true);
 			}
 			
-			if (frameSize > info.maxFrameSize) {
-				info.maxFrameSize = (int)frameSize;				
+			throw e;
+		}
+	}
+	
+	// Searches the best encoding of the block samples[ : ][pos : pos + n] and returns the serialized frame.
+	private static byte[] encodeFrame(int[][] samples, int pos, int n, int sampleDepth, int sampleRate, SubframeEncoder.SearchOptions opt, ExecutorService searchExecutor) throws IOException {
+		long[][] subsamples = getRange(samples, pos, n);
+		FrameEncoder enc = FrameEncoder.computeBest(pos, subsamples, sampleDepth, sampleRate, opt, null, searchExecutor).encoder;
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		
+		try (BitOutputStream bitout = new BitOutputStream(bout)) {
+			enc.encode(subsamples, bitout);
+		}
+		
+		return bout.toByteArray();
+	}
+	
+	// Waits for the given task to finish, and rethrows its failure (if any) as an unchecked or I/O exception.
+	static <T> T getResult(Future<T> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw unwrapFailure(e);
+		}
+	}
+	
+	// Waits like getResult(task), but throws TimeoutException if the task has not finished within the given time.
+	// The waiting thread never runs any part of the task itself.
+	static <T> T getResult(Future<T> task, long timeout, TimeUnit unit) throws IOException, TimeoutException {
+		try {
+			return task.get(timeout, unit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw unwrapFailure(e);
+		}
+	}
+	
+	// Returns the cause of the given failure if it is an I/O exception, or else throws the cause if it is unchecked.
+	private static IOException unwrapFailure(ExecutionException e) {
+		Throwable cause = e.getCause();
+		
+		if (cause instanceof IOException) {
+			return (IOException)cause;
+		} else if (cause instanceof RuntimeException) {
+			throw (RuntimeException)cause;
+		} else if (cause instanceof Error) {
+			throw (Error)cause;
+		} else {
+			throw new AssertionError(cause);
+		}
+	}
+	
+	// Checks that there is one array of samples per channel, that all of them are long enough for the range [off, off + len),
+	// and that each value in that range fits in a signed integer of the given sample depth. This is the one full validation
+	// of the encoder input; the frame and subframe kernels trust it (see SubframeEncoder.fitsSignedBits()).
+	static void checkSamples(int[][] samples, int off, int len, int numChannels, int sampleDepth) {
+		Objects.requireNonNull(samples);
+		
+		if (samples.length != numChannels) {
+			throw new IllegalArgumentException("Channel count mismatch");
+		}
+		
+		if (sampleDepth < 1 || sampleDepth > 32) {
+			throw new IllegalArgumentException();
+		}
+		
+		int shift = sampleDepth - 1;
+		
+		for (int[] chanSamples : samples) {
+			if (off < 0 || len < 0 || chanSamples.length - off < len) {
+				throw new IndexOutOfBoundsException();
 			}
 			
-			pos += n;
+			for (int i = off; i < off + len; i++) {
+				int x = chanSamples[i] >> shift;
+				
+				if (x != 0 && x != -1) {
+					throw new IllegalArgumentException("Sample does not fit the sample depth");
+				}
+			}
+		}
+	}
+	
+	// Updates the stream info's minimum and maximum frame sizes with the given size of a newly written frame.
+	static void updateFrameSizes(StreamInfo info, long frameSize) {
+		if (frameSize < 0 || (int)frameSize != frameSize) {
+			throw new AssertionError();
+		}
+		
+		if (info.minFrameSize == 0 || frameSize < info.minFrameSize) {
+			info.minFrameSize = (int)frameSize;
+		}
+		
+		if (frameSize > info.maxFrameSize) {
+			info.maxFrameSize = (int)frameSize;
 		}
 	}
 	
-	// Returns the subrange array[ : ][off : off + len] upcasted to long.
-	private static long[][] getRange(int[][] array, int off, int len) {
-		long[][] result = new long[array.length][len];
+	// Returns the subrange array[ : ][off : off + len] upcasted to long. The result is
+	// made of scratch arrays of the current thread, which stay valid until the next call.
+	static long[][] getRange(int[][] array, int off, int len) {
+		long[][] result = ScratchArena.get().longArrays(ScratchArena.FRAME_SAMPLES, array.length, len);
 		
 		for (int i = 0; i < array.length; i++) {
 			int[] src = array[i];
@@ -0,0 +1,201 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.encode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Objects;
+import com.ybene.unibo.comp.audio.flac.common.StreamInfo;
+
+/* 
+ * The encoded frames of one segment of a stream, i.e. the samples in the range [sampleOffset, sampleOffset + numSamples)
+ * per channel, together with the statistics that the stream info block needs. Segments can be encoded independently
+ * (by separate encoder instances, threads or processes) and joined with FlacStitcher. Because every frame header holds
+ * the offset of its first sample, a segment starting at a multiple of the block size produces exactly the frames that
+ * a whole-stream FlacEncoder run with the same options produces for its range. Segments can be serialized with write()
+ * and read() to move them between processes. Objects of this class are immutable.
+ */
+public final class FlacSegment {
+	
+	/*---- Constants ----*/
+	
+	private static final int MAGIC = 0x464C5347;  // "FLSG", at the start of the serialized form
+	
+	/*---- Fields ----*/
+	
+	private final long sampleOffset;
+	private final StreamInfo info;  // Format of the stream, plus the sample count, block sizes and frame sizes of this segment
+	private final byte[] frames;
+	
+	/*---- Constructors ----*/
+	
+	private FlacSegment(long sampleOffset, StreamInfo info, byte[] frames) {
+		this.sampleOffset = sampleOffset;
+		this.info = info;
+		this.frames = frames;
+	}
+	
+	/*---- Static functions ----*/
+	
+	// Encodes samples[ : ][off : off + len] as the segment of a stream that starts at the given sample offset, which must be
+	// a multiple of the block size. Only the final segment of a stream may have a length that is not a multiple of the
+	// block size. The frames are searched with the given options, exactly like FlacEncoder does for the same range.
+	public static FlacSegment encode(int[][] samples, int off, int len, long sampleOffset, int sampleRate, int sampleDepth,
+			int blockSize, SubframeEncoder.SearchOptions opt) throws IOException {
+		
+		Objects.requireNonNull(opt);
+		FlacEncoder.checkSamples(samples, off, len, samples.length, sampleDepth);
+		
+		if (blockSize < 16 || blockSize > 65535 || sampleOffset < 0 || sampleOffset % blockSize != 0
+				|| (sampleOffset + len) >>> 36 != 0) {
+			throw new IllegalArgumentException();
+		}
+		
+		StreamInfo info = new StreamInfo();
+		info.sampleRate = sampleRate;
+		info.numChannels = samples.length;
+		info.sampleDepth = sampleDepth;
+		info.numSamples = len;
+		info.minBlockSize = blockSize;
+		info.maxBlockSize = blockSize;
+		info.checkValues();
+		
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		
+		try (BitOutputStream out = new BitOutputStream(bout)) {
+			for (int pos = 0; pos < len; ) {
+				int n = Math.min(len - pos, blockSize);
+				long[][] subsamples = FlacEncoder.getRange(samples, off + pos, n);
+				FrameEncoder enc = FrameEncoder.computeBest(sampleOffset + pos, subsamples, sampleDepth, sampleRate, opt).encoder;
+				long startByte = out.getByteCount();
+				enc.encode(subsamples, out);
+				FlacEncoder.updateFrameSizes(info, out.getByteCount() - startByte);
+				pos += n;
+			}
+		}
+		
+		return new FlacSegment(sampleOffset, info, bout.toByteArray());
+	}
+	
+	// Reads a segment in the format of write() from the given stream, leaving the stream open.
+	public static FlacSegment read(InputStream in) throws IOException {
+		DataInputStream din = new DataInputStream(in);
+		
+		if (din.readInt() != MAGIC) {
+			throw new IOException("Not a FLAC segment");
+		}
+		
+		long sampleOffset = din.readLong();
+		StreamInfo info = new StreamInfo();
+		info.sampleRate = din.readInt();
+		info.numChannels = din.readInt();
+		info.sampleDepth = din.readInt();
+		info.numSamples = din.readLong();
+		info.minBlockSize = din.readInt();
+		info.maxBlockSize = din.readInt();
+		info.minFrameSize = din.readInt();
+		info.maxFrameSize = din.readInt();
+		int frameBytes = din.readInt();
+		
+		try {
+			info.checkValues();
+		} catch (IllegalStateException e) {
+			throw new IOException("Invalid FLAC segment", e);
+		}
+		
+		if (sampleOffset < 0 || frameBytes < 0) {
+			throw new IOException("Invalid FLAC segment");
+		}
+		
+		byte[] frames = new byte[frameBytes];
+		din.readFully(frames);
+		return new FlacSegment(sampleOffset, info, frames);
+	}
+	
+	/*---- Methods ----*/
+	
+	// Writes this segment to the given stream in a simple self-describing format, leaving the stream open.
+	public void write(OutputStream out) throws IOException {
+		DataOutputStream dout = new DataOutputStream(out);
+		dout.writeInt(MAGIC);
+		dout.writeLong(sampleOffset);
+		dout.writeInt(info.sampleRate);
+		dout.writeInt(info.numChannels);
+		dout.writeInt(info.sampleDepth);
+		dout.writeLong(info.numSamples);
+		dout.writeInt(info.minBlockSize);
+		dout.writeInt(info.maxBlockSize);
+		dout.writeInt(info.minFrameSize);
+		dout.writeInt(info.maxFrameSize);
+		dout.writeInt(frames.length);
+		dout.write(frames);
+		dout.flush();
+	}
+	
+	public long getSampleOffset() {
+		return sampleOffset;
+	}
+	
+	public long getNumSamples() {
+		return info.numSamples;
+	}
+	
+	public int getSampleRate() {
+		return info.sampleRate;
+	}
+	
+	public int getNumChannels() {
+		return info.numChannels;
+	}
+	
+	public int getSampleDepth() {
+		return info.sampleDepth;
+	}
+	
+	public int getBlockSize() {
+		return info.maxBlockSize;
+	}
+	
+	// Returns the size of the smallest frame in bytes, or 0 if the segment is empty.
+	public int getMinFrameSize() {
+		return info.minFrameSize;
+	}
+	
+	// Returns the size of the largest frame in bytes, or 0 if the segment is empty.
+	public int getMaxFrameSize() {
+		return info.maxFrameSize;
+	}
+	
+	// Returns the total size of the encoded frames in bytes.
+	public int getEncodedSize() {
+		return frames.length;
+	}
+	
+	// Writes the encoded frames to the given bit output stream, which must be at a byte boundary.
+	void writeFrames(BitOutputStream out) throws IOException {
+		out.write(frames, 0, frames.length);
+	}
+}
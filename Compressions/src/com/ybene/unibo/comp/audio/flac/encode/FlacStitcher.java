@@ -0,0 +1,112 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.encode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Objects;
+import com.ybene.unibo.comp.audio.flac.common.StreamInfo;
+
+/* 
+ * Joins independently encoded segments (see FlacSegment) into one FLAC file. The segments must be given in order,
+ * be contiguous from sample 0, share the stream format and block size, and all but the last must hold a whole number
+ * of blocks. The result is bit-identical to encoding the whole stream with FlacEncoder (or StreamingFlacEncoder)
+ * using the same block size and search options. The MD5 hash cannot be combined from per-segment hashes, so the
+ * coordinator computes it over the whole audio (e.g. with StreamInfo.getMd5Hash()) while the segments are encoded.
+ */
+public final class FlacStitcher {
+	
+	/*---- Static functions ----*/
+	
+	// Writes the header, the stream info block and the frames of all the segments to the given stream, which is flushed
+	// but left open. The MD5 hash can be null, which means it was not computed. Returns the stream info that was written.
+	public static StreamInfo stitch(List<FlacSegment> segments, byte[] md5Hash, OutputStream out) throws IOException {
+		Objects.requireNonNull(out);
+		StreamInfo info = mergeInfo(segments);
+		
+		if (md5Hash != null) {
+			info.md5Hash = md5Hash.clone();
+		}
+		
+		info.checkValues();
+		BitOutputStream bitOut = new BitOutputStream(out);
+		bitOut.writeInt(32, 0x664C6143);
+		info.write(true, bitOut);
+		
+		for (FlacSegment seg : segments) {
+			seg.writeFrames(bitOut);
+		}
+		
+		bitOut.flush();
+		return info;
+	}
+	
+	// Checks that the segments form a whole stream, and returns its stream info with a blank MD5 hash.
+	// The minimum and maximum frame sizes are the extremes over all segments, as a single encoder would record them.
+	static StreamInfo mergeInfo(List<FlacSegment> segments) {
+		if (segments.isEmpty()) {
+			throw new IllegalArgumentException("No segments");
+		}
+		
+		FlacSegment first = segments.get(0);
+		StreamInfo info = new StreamInfo();
+		info.sampleRate = first.getSampleRate();
+		info.numChannels = first.getNumChannels();
+		info.sampleDepth = first.getSampleDepth();
+		info.minBlockSize = first.getBlockSize();
+		info.maxBlockSize = first.getBlockSize();
+		long numSamples = 0;
+		
+		for (int i = 0; i < segments.size(); i++) {
+			FlacSegment seg = segments.get(i);
+			
+			if (seg.getSampleRate() != info.sampleRate || seg.getNumChannels() != info.numChannels
+					|| seg.getSampleDepth() != info.sampleDepth || seg.getBlockSize() != info.maxBlockSize) {
+				throw new IllegalArgumentException("Segment format mismatch");
+			}
+			
+			if (seg.getSampleOffset() != numSamples) {
+				throw new IllegalArgumentException("Segments not contiguous");
+			}
+			
+			if (i < segments.size() - 1 && seg.getNumSamples() % info.maxBlockSize != 0) {
+				throw new IllegalArgumentException("Segment not a whole number of blocks");
+			}
+			
+			numSamples += seg.getNumSamples();
+			
+			if (seg.getMinFrameSize() != 0 && (info.minFrameSize == 0 || seg.getMinFrameSize() < info.minFrameSize)) {
+				info.minFrameSize = seg.getMinFrameSize();
+			}
+			
+			info.maxFrameSize = Math.max(seg.getMaxFrameSize(), info.maxFrameSize);
+		}
+		
+		info.numSamples = numSamples;
+		return info;
+	}
+	
+	/*---- Constructors ----*/
+	
+	private FlacStitcher() {}  // Not instantiable
+}
@@ -21,9 +21,12 @@
 
 package com.ybene.unibo.comp.audio.flac.encode;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import com.ybene.unibo.comp.audio.flac.common.FrameInfo;
 
 /* 
@@ -35,57 +38,168 @@ final class FrameEncoder {
 	
 	/*---- Static functions ----*/
 	
-	public static SizeEstimate<FrameEncoder> computeBest(int sampleOffset, long[][] samples, int sampleDepth, int sampleRate, SubframeEncoder.SearchOptions opt) {
+	public static SizeEstimate<FrameEncoder> computeBest(long sampleOffset, long[][] samples, int sampleDepth, int sampleRate, SubframeEncoder.SearchOptions opt) {
+		return computeBest(sampleOffset, samples, sampleDepth, sampleRate, opt, null, null);
+	}
+	
+	// Same as above, but if lagSums is not null, then it holds the lag sums for lags 0 to opt.maxLpcOrder of each channel
+	// (for stereo, of the left, right, mid and side channels in this order) as opt.lpcAnalysis uses them (see LagSumCache).
+	public static SizeEstimate<FrameEncoder> computeBest(long sampleOffset, long[][] samples, int sampleDepth, int sampleRate,
+			SubframeEncoder.SearchOptions opt, double[][] lagSums) {
+		return computeBest(sampleOffset, samples, sampleDepth, sampleRate, opt, lagSums, null);
+	}
+	
+	// Same as above, but if searchExecutor is not null, then the channels of the frame and the LPC orders of each channel
+	// are searched concurrently on it, and this call returns once they are all done. This lowers the latency of a single
+	// frame, at the price of some coordination overhead; the encoding is identical to the serial one. The executor must not
+	// be one whose threads run frame searches themselves (see ParallelSearch).
+	public static SizeEstimate<FrameEncoder> computeBest(long sampleOffset, long[][] samples, int sampleDepth, int sampleRate,
+			SubframeEncoder.SearchOptions opt, double[][] lagSums, Executor searchExecutor) {
+		
+		if (lagSums != null && lagSums.length != (samples.length == 2 ? 4 : samples.length)) {
+			throw new IllegalArgumentException();
+		}
+		
 		FrameEncoder enc = new FrameEncoder(sampleOffset, samples, sampleDepth, sampleRate);
 		int numChannels = samples.length;
+		int blockSize = samples[0].length;
 		
 		@SuppressWarnings("unchecked")
 		SizeEstimate<SubframeEncoder>[] encoderInfo = new SizeEstimate[numChannels];
 		
-		if (numChannels != 2) {
+		// The coded values of every searched channel are kept in the residual slots of this thread's arena,
+		// so that encode() can write them out directly if it runs next on the same thread
+		ScratchArena scratch = ScratchArena.get();
+		scratch.residualGeneration++;
+		enc.residualArena = scratch;
+		enc.residualGeneration = scratch.residualGeneration;
+		enc.codedValues = new long[numChannels][];
+		
+		// Take the obvious encoding of degenerate blocks (see FrameShortcut)
+		FrameShortcut shortcut = FrameShortcut.classify(samples, blockSize);
+		
+		if (shortcut == FrameShortcut.LOW_AMPLITUDE && opt.maxLpcOrder != -1) {
+			opt = opt.withoutLpc();
+			lagSums = null;  // Sized for the LPC orders of the original options
+		}
+		
+		if (shortcut == FrameShortcut.CONSTANT) {
 			enc.metadata.channelAssignment = numChannels - 1;
 			
 			for (int i = 0; i < encoderInfo.length; i++) {
-				encoderInfo[i] = SubframeEncoder.computeBest(samples[i], sampleDepth, opt);				
+				enc.codedValues[i] = scratch.longArray(ScratchArena.RESIDUAL + i, blockSize);
+				encoderInfo[i] = constantSubframe(samples[i], sampleDepth, enc.codedValues[i]);
 			}
+		} else if (numChannels != 2) {
+			enc.metadata.channelAssignment = numChannels - 1;
+			int[] depths = new int[numChannels];
+			
+			for (int i = 0; i < encoderInfo.length; i++) {
+				enc.codedValues[i] = scratch.longArray(ScratchArena.RESIDUAL + i, blockSize);
+				depths[i] = sampleDepth;
+			}
+			
+			encoderInfo = searchChannels(samples, depths, opt, enc.codedValues, lagSums != null ? lagSums : new double[numChannels][], searchExecutor);
 		} else {  // Explore the 4 stereo encoding modes
 			long[] left  = samples[0];
 			long[] right = samples[1];
-			long[] mid  = new long[samples[0].length];
-			long[] side = new long[mid.length];
+			long[] mid  = scratch.longArray(ScratchArena.MID , left.length);
+			long[] side = scratch.longArray(ScratchArena.SIDE, left.length);
+			EncoderKernels.splitMidSide(left, right, left.length, mid, side);
+			
+			long[] leftValues  = scratch.longArray(ScratchArena.RESIDUAL + 0, blockSize);
+			long[] rightValues = scratch.longArray(ScratchArena.RESIDUAL + 1, blockSize);
+			long[] midValues   = scratch.longArray(ScratchArena.RESIDUAL + 2, blockSize);
+			long[] sideValues  = scratch.longArray(ScratchArena.RESIDUAL + 3, blockSize);
+			long[][] channels = {left, right, mid, side};  // A null entry is not searched
 			
-			for (int i = 0; i < mid.length; i++) {
-				mid[i] = (left[i] + right[i]) >> 1;
-				side[i] = left[i] - right[i];
+			if (lagSums == null) {
+				lagSums = new double[4][];
+			}
+			
+			if (shortcut == FrameShortcut.DUAL_MONO) {  // Left-side with a zero side
+				channels[1] = null;
+				channels[2] = null;
+				channels[3] = null;
+			} else if (shortcut == FrameShortcut.INVERTED) {  // Mid-side with a zero mid
+				channels[0] = null;
+				channels[1] = null;
+				channels[2] = null;
+			} else if (opt.preselectStereoMode) {
+				// Search only the two channels of the predicted channel assignment
+				int mode = StereoModeEstimator.predictChannelAssignment(left, right, blockSize);
+				
+				if (mode != 1 && mode != 8) {
+					channels[0] = null;
+				}
+				
+				if (mode != 1 && mode != 9) {
+					channels[1] = null;
+				}
+				
+				if (mode != 10) {
+					channels[2] = null;
+				}
+				
+				if (mode == 1) {
+					channels[3] = null;
+				}
+			} else {
+				// Obtain the lag sums of the four channels from three autocorrelation passes, unless the caller supplied them
+				if (lagSums[0] == null && opt.maxLpcOrder >= 1) {
+					double[][] temp = StereoCorrelation.computeLagSums(left, right, side, opt.lpcAnalysis, opt.maxLpcOrder);
+					
+					if (temp != null) {
+						lagSums = temp;
+					}
+				}
+				
 			}
 			
-			SizeEstimate<SubframeEncoder> leftInfo  = SubframeEncoder.computeBest(left , sampleDepth, opt);
-			SizeEstimate<SubframeEncoder> rightInfo = SubframeEncoder.computeBest(right, sampleDepth, opt);
-			SizeEstimate<SubframeEncoder> midInfo   = SubframeEncoder.computeBest(mid  , sampleDepth, opt);
-			SizeEstimate<SubframeEncoder> sideInfo  = SubframeEncoder.computeBest(side , sampleDepth + 1, opt);
+			int[] depths = {sampleDepth, sampleDepth, sampleDepth, sampleDepth + 1};
+			long[][] values = {leftValues, rightValues, midValues, sideValues};
+			SizeEstimate<SubframeEncoder>[] infos = searchChannels(channels, depths, opt, values, lagSums, searchExecutor);
+			SizeEstimate<SubframeEncoder> leftInfo  = infos[0];
+			SizeEstimate<SubframeEncoder> rightInfo = infos[1];
+			SizeEstimate<SubframeEncoder> midInfo   = infos[2];
+			SizeEstimate<SubframeEncoder> sideInfo  = infos[3];
 			
-			long mode1Size = leftInfo.sizeEstimate + rightInfo.sizeEstimate;
-			long mode8Size = leftInfo.sizeEstimate + sideInfo.sizeEstimate;
-			long mode9Size = rightInfo.sizeEstimate + sideInfo.sizeEstimate;
-			long mode10Size = midInfo.sizeEstimate + sideInfo.sizeEstimate;
+			if (shortcut == FrameShortcut.DUAL_MONO) {
+				sideInfo = constantSubframe(side, sampleDepth + 1, sideValues);
+			} else if (shortcut == FrameShortcut.INVERTED) {
+				midInfo = constantSubframe(mid, sampleDepth, midValues);
+			}
+			
+			long mode1Size = totalSize(leftInfo, rightInfo);
+			long mode8Size = totalSize(leftInfo, sideInfo);
+			long mode9Size = totalSize(rightInfo, sideInfo);
+			long mode10Size = totalSize(midInfo, sideInfo);
 			long minimum = Math.min(Math.min(mode1Size, mode8Size), Math.min(mode9Size, mode10Size));
 			
 			if (mode1Size == minimum) {
 				enc.metadata.channelAssignment = 1;
 				encoderInfo[0] = leftInfo;
 				encoderInfo[1] = rightInfo;
+				enc.codedValues[0] = leftValues;
+				enc.codedValues[1] = rightValues;
 			} else if (mode8Size == minimum) {
 				enc.metadata.channelAssignment = 8;
 				encoderInfo[0] = leftInfo;
 				encoderInfo[1] = sideInfo;
+				enc.codedValues[0] = leftValues;
+				enc.codedValues[1] = sideValues;
 			} else if (mode9Size == minimum) {
 				enc.metadata.channelAssignment = 9;
 				encoderInfo[0] = sideInfo;
 				encoderInfo[1] = rightInfo;
+				enc.codedValues[0] = sideValues;
+				enc.codedValues[1] = rightValues;
 			} else if (mode10Size == minimum) {
 				enc.metadata.channelAssignment = 10;
 				encoderInfo[0] = midInfo;
 				encoderInfo[1] = sideInfo;
+				enc.codedValues[0] = midValues;
+				enc.codedValues[1] = sideValues;
 			} else {
 				throw new AssertionError();				
 			}
@@ -101,18 +215,8 @@ final class FrameEncoder {
 		}
 		
 		// Count length of header (always in whole bytes)
-		try {
-			ByteArrayOutputStream bout = new ByteArrayOutputStream();
-			
-			try (BitOutputStream bitout = new BitOutputStream(bout)) {
-				enc.metadata.writeHeader(bitout);
-			}
-			
-			bout.close();
-			size += bout.toByteArray().length * 8;
-		} catch (IOException e) {
-			throw new AssertionError(e);
-		}
+		FrameInfo meta = enc.metadata;
+		size += FrameInfo.getHeaderSize(meta.blockSize, meta.sampleRate, meta.sampleDepth, meta.sampleOffset) * 8;
 		
 		// Count padding and footer
 		size = (size + 7) / 8;  // Round up to nearest byte
@@ -121,14 +225,76 @@ final class FrameEncoder {
 		return new SizeEstimate<>(size, enc);
 	}
 	
+	// Returns the constant encoding of the given channel, which must be constant, and stores its coded value.
+	private static SizeEstimate<SubframeEncoder> constantSubframe(long[] samples, int sampleDepth, long[] codedValues) {
+		SizeEstimate<SubframeEncoder> result = ConstantEncoder.computeBest(samples, 0, sampleDepth);
+		assert result != null;
+		codedValues[0] = samples[0];
+		return result;
+	}
+	
+	// Searches the best subframe encoding of each non-null channels[i] at depths[i] into values[i], and returns their size estimates
+	// (null where the channel is null). With an executor, the channels are searched concurrently; each task writes only its own
+	// values array (which belongs to the calling thread's arena) and takes its other scratch arrays from the thread running it.
+	private static SizeEstimate<SubframeEncoder>[] searchChannels(long[][] channels, int[] depths, SubframeEncoder.SearchOptions opt,
+			long[][] values, double[][] lagSums, Executor searchExecutor) {
+		
+		@SuppressWarnings("unchecked")
+		SizeEstimate<SubframeEncoder>[] result = new SizeEstimate[channels.length];
+		
+		if (searchExecutor == null) {
+			for (int i = 0; i < channels.length; i++) {
+				if (channels[i] != null) {
+					result[i] = SubframeEncoder.computeBest(channels[i], depths[i], opt, values[i], lagSums[i], null);
+				}
+			}
+			
+			return result;
+		}
+		
+		List<Integer> indexes = new ArrayList<>();
+		List<Callable<SizeEstimate<SubframeEncoder>>> tasks = new ArrayList<>();
+		
+		for (int i = 0; i < channels.length; i++) {
+			if (channels[i] != null) {
+				int ch = i;
+				indexes.add(ch);
+				tasks.add(() -> SubframeEncoder.computeBest(channels[ch], depths[ch], opt, values[ch], lagSums[ch], searchExecutor));
+			}
+		}
+		
+		List<SizeEstimate<SubframeEncoder>> estimates = ParallelSearch.invokeAll(searchExecutor, tasks);
+		
+		for (int i = 0; i < estimates.size(); i++) {
+			result[indexes.get(i)] = estimates.get(i);
+		}
+		
+		return result;
+	}
+	
+	// Returns the sum of the two subframe sizes, or Long.MAX_VALUE if either subframe was not searched.
+	private static long totalSize(SizeEstimate<SubframeEncoder> a, SizeEstimate<SubframeEncoder> b) {
+		if (a == null || b == null) {
+			return Long.MAX_VALUE;
+		}
+		
+		return a.sizeEstimate + b.sizeEstimate;
+	}
+	
 	/*---- Fields ----*/
 	
 	public FrameInfo metadata;
 	private SubframeEncoder[] subEncoders;
 	
+	// The coded values of each subframe as found by computeBest(), which live in the scratch arena of the thread that ran it.
+	// They are only trusted if encode() runs on that same thread and no other frame search has reused the arena slots since.
+	private long[][] codedValues;
+	private ScratchArena residualArena;
+	private int residualGeneration;
+	
 	/*---- Constructors ----*/
 	
-	public FrameEncoder(int sampleOffset, long[][] samples, int sampleDepth, int sampleRate) {
+	public FrameEncoder(long sampleOffset, long[][] samples, int sampleDepth, int sampleRate) {
 		metadata = new FrameInfo();
 		metadata.sampleOffset = sampleOffset;
 		metadata.sampleDepth = sampleDepth;
@@ -151,20 +317,22 @@ final class FrameEncoder {
 		
 		int chanAsgn = metadata.channelAssignment;
 		
-		if (0 <= chanAsgn && chanAsgn <= 7) {
+		if (residualArena != null && residualArena == ScratchArena.get() && residualArena.residualGeneration == residualGeneration) {
+			// Pure bit emission of the values kept from the search
+			for (int i = 0; i < subEncoders.length; i++) {
+				subEncoders[i].encode(null, codedValues[i], out);
+			}
+		} else if (0 <= chanAsgn && chanAsgn <= 7) {
 			for (int i = 0; i < samples.length; i++) {				
 				subEncoders[i].encode(samples[i], out);
 			}
 		} else if (8 <= chanAsgn || chanAsgn <= 10) {
 			long[] left  = samples[0];
 			long[] right = samples[1];
-			long[] mid  = new long[metadata.blockSize];
-			long[] side = new long[metadata.blockSize];
-			
-			for (int i = 0; i < metadata.blockSize; i++) {
-				mid[i] = (left[i] + right[i]) >> 1;
-				side[i] = left[i] - right[i];
-			}
+			ScratchArena scratch = ScratchArena.get();
+			long[] mid  = scratch.longArray(ScratchArena.MID , metadata.blockSize);
+			long[] side = scratch.longArray(ScratchArena.SIDE, metadata.blockSize);
+			EncoderKernels.splitMidSide(left, right, metadata.blockSize, mid, side);
 			
 			if (chanAsgn == 8) {
 				subEncoders[0].encode(left, out);
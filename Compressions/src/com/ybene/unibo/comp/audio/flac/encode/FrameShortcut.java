@@ -0,0 +1,112 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.encode;
+
+import java.util.Objects;
+
+/* 
+ * The kinds of degenerate blocks for which FrameEncoder takes a shortcut instead of the full subframe search. The block
+ * is classified in one pass over its samples, checking the kinds in the order they are declared here. For a constant
+ * block (such as digital silence) every channel is coded as a constant subframe. For a dual mono block (left equal
+ * to right) only the left channel is searched and the side is the constant zero; for an inverted block (left equal to
+ * minus right) only the side channel is searched and the mid is the constant zero. These three are exactly what the full
+ * search picks. A low amplitude block, whose samples (without their wasted low zero bits) all fit in a signed integer of
+ * LOW_AMPLITUDE_BITS + 1 bits, is searched without linear predictive coding, which cannot pay for its coefficients there.
+ */
+public enum FrameShortcut {
+	
+	/*---- Enum constants ----*/
+	
+	NONE,
+	CONSTANT,
+	DUAL_MONO,
+	INVERTED,
+	LOW_AMPLITUDE;
+	
+	/*---- Constants ----*/
+	
+	public static final int LOW_AMPLITUDE_BITS = 3;
+	
+	/*---- Static functions ----*/
+	
+	// Returns the shortcut that applies to the given block, of which only the first length values of each channel are used.
+	// The dual mono and inverted kinds only apply to two channels, and an empty block is NONE.
+	public static FrameShortcut classify(long[][] samples, int length) {
+		Objects.requireNonNull(samples);
+		
+		for (long[] chanSamples : samples) {
+			if (length < 0 || length > chanSamples.length) {
+				throw new IndexOutOfBoundsException();
+			}
+		}
+		
+		if (length == 0) {
+			return NONE;
+		}
+		
+		// Check constancy and measure the amplitude of each channel
+		boolean constant = true;
+		int maxWidth = 0;  // Largest magnitude width over the channels, after removing their wasted bits
+		
+		for (long[] chanSamples : samples) {
+			long first = chanSamples[0];
+			long bits = 0;  // OR of the values, whose trailing zeros are the wasted bits
+			long magnitudes = 0;  // OR of x for x >= 0 and of -x - 1 for x < 0
+			
+			for (int i = 0; i < length; i++) {
+				long x = chanSamples[i];
+				constant &= x == first;
+				bits |= x;
+				magnitudes |= x ^ (x >> 63);
+			}
+			
+			if (bits != 0) {
+				maxWidth = Math.max(64 - Long.numberOfLeadingZeros(magnitudes >> Long.numberOfTrailingZeros(bits)), maxWidth);
+			}
+		}
+		
+		if (constant) {
+			return CONSTANT;
+		}
+		
+		// Compare the two channels of a stereo block
+		if (samples.length == 2) {
+			long[] left  = samples[0];
+			long[] right = samples[1];
+			boolean same = true;
+			boolean opposite = true;
+			
+			for (int i = 0; i < length && (same || opposite); i++) {
+				same &= left[i] == right[i];
+				opposite &= left[i] == -right[i];
+			}
+			
+			if (same) {
+				return DUAL_MONO;
+			} else if (opposite) {
+				return INVERTED;
+			}
+		}
+		
+		return maxWidth <= LOW_AMPLITUDE_BITS ? LOW_AMPLITUDE : NONE;
+	}
+}
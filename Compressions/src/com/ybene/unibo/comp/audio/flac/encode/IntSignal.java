@@ -0,0 +1,86 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.encode;
+
+/* 
+ * The samples of a subframe shifted right by their wasted bits, stored as 32-bit integers, together with their largest
+ * magnitude. This is the input of the int-specialized prediction kernels, which read half the memory of the long[] ones
+ * and accumulate in 32 bits when the magnitude and the coefficients prove that no overflow can happen. Subframes whose
+ * shifted samples need 33 bits (the side channel of 32-bit audio) stay on the long[] path. The values array lives in
+ * the scratch arena, so an object of this class is only valid during the search of the subframe it was made for.
+ */
+final class IntSignal {
+	
+	/*---- Static functions ----*/
+	
+	// Returns the shifted samples (samples[i] >> shift) as an int signal, or null if they do not all fit in 32 bits,
+	// where width is the number of bits each shifted sample is known to fit in (the sample depth minus the shift).
+	public static IntSignal shiftedFrom(long[] samples, int shift, int width) {
+		if (width > 32) {
+			return null;
+		}
+		
+		int[] values = ScratchArena.get().intArray(ScratchArena.SHIFTED_INT, samples.length);
+		long maxAbs = 0;
+		
+		for (int i = 0; i < samples.length; i++) {
+			long x = samples[i] >> shift;
+			values[i] = (int)x;
+			maxAbs = Math.max(Math.abs(x), maxAbs);
+		}
+		
+		return new IntSignal(values, samples.length, maxAbs);
+	}
+	
+	/*---- Fields ----*/
+	
+	public final int[] values;  // Only values[0 : length] are valid
+	public final int length;
+	public final long maxAbs;  // The largest absolute value among the valid values
+	
+	/*---- Constructors ----*/
+	
+	private IntSignal(int[] values, int length, long maxAbs) {
+		this.values = values;
+		this.length = length;
+		this.maxAbs = maxAbs;
+	}
+	
+	/*---- Methods ----*/
+	
+	// Stores into dest (of the same length as this signal) the values that LinearPredictiveEncoder.applyLpc() would leave
+	// in a copy of this signal, i.e. the first coefs.length values unchanged followed by the prediction residual.
+	// The dot products are accumulated in 32 bits whenever their magnitude is bounded below 2^31, and in 64 bits otherwise.
+	public void applyLpc(int[] coefs, int shift, long[] dest) {
+		if (dest.length != length || coefs.length > length) {
+			throw new IllegalArgumentException();
+		}
+		
+		long coefSum = 0;
+		
+		for (int c : coefs) {
+			coefSum += Math.abs(c);
+		}
+		
+		EncoderKernels.applyLpc(values, length, coefs, shift, maxAbs * coefSum <= Integer.MAX_VALUE, dest);
+	}
+}
@@ -0,0 +1,150 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.encode;
+
+import java.util.Objects;
+
+/* 
+ * Holds the lag sums (see FastDotProduct) of every base block of a whole stream, so that the least squares LPC analysis
+ * of any block made of consecutive base blocks can assemble its lag sums instead of recomputing them. The lag sum of such
+ * a block is the sum of its base blocks' own lag sums plus, at each inner boundary, the few products whose two samples
+ * straddle it. Both parts are stored per base block, which makes assembling a block of m base blocks cost O(m * maxLag)
+ * additions, against a pass over all its samples per lag otherwise. Adding up partial sums only regroups the terms, so
+ * the result is exact whenever the direct sums are (e.g. for 16-bit audio) and otherwise differs in rounding alone.
+ * For stereo streams, the sums of the left, right and side channels are stored and those of mid are derived from them
+ * (see StereoCorrelation). Objects of this class are immutable after construction and safe to share between threads.
+ */
+final class LagSumCache {
+	
+	/*---- Static functions ----*/
+	
+	// Returns a cache of the lag sums for lags 0 to maxLag of the given samples (channels of the same length), split into
+	// blocks of baseSize samples (the last one possibly shorter), or null if the base size is smaller than maxLag.
+	public static LagSumCache build(int[][] samples, int baseSize, int maxLag) {
+		Objects.requireNonNull(samples);
+		
+		if (baseSize < 1 || maxLag < 0) {
+			throw new IllegalArgumentException();
+		}
+		
+		if (baseSize < maxLag) {  // Products would straddle several boundaries
+			return null;
+		}
+		
+		return new LagSumCache(samples, baseSize, maxLag);
+	}
+	
+	/*---- Fields ----*/
+	
+	private final int numSamples;
+	private final int baseSize;
+	private final int maxLag;
+	private final boolean stereo;
+	
+	// innerSums[s][k][lag] sums the products of signal s whose two samples lie in base block k.
+	// edgeSums[s][k][lag] sums the products whose first sample lies in block k - 1 and second one in block k.
+	// The signals are the channels, except for stereo where they are left, right and side.
+	private final double[][][] innerSums;
+	private final double[][][] edgeSums;
+	
+	/*---- Constructors ----*/
+	
+	private LagSumCache(int[][] samples, int baseSize, int maxLag) {
+		numSamples = samples[0].length;
+		this.baseSize = baseSize;
+		this.maxLag = maxLag;
+		stereo = samples.length == 2;
+		int numSignals = stereo ? 3 : samples.length;
+		int numBlocks = (numSamples + baseSize - 1) / baseSize;
+		innerSums = new double[numSignals][numBlocks][maxLag + 1];
+		edgeSums = new double[numSignals][numBlocks][maxLag + 1];
+		
+		// Each block is copied with the maxLag samples before it, so that the boundary products can be formed
+		long[] buffer = new long[maxLag + baseSize];
+		
+		for (int s = 0; s < numSignals; s++) {
+			for (int k = 0; k < numBlocks; k++) {
+				int start = k * baseSize;
+				int end = Math.min(start + baseSize, numSamples);
+				int bufStart = Math.max(start - maxLag, 0);
+				
+				for (int i = bufStart; i < end; i++) {
+					buffer[i - bufStart] = s < 2 || !stereo ? samples[s][i] : (long)samples[0][i] - samples[1][i];
+				}
+				
+				int blockOff = start - bufStart;
+				int len = end - start;
+				
+				for (int lag = 0; lag <= maxLag; lag++) {
+					double inner = 0;
+					
+					for (int j = blockOff, n = blockOff + len - lag; j < n; j++) {
+						inner += (double)buffer[j] * buffer[j + lag];
+					}
+					
+					double edge = 0;
+					
+					for (int j = Math.max(blockOff - lag, 0), n = Math.min(blockOff, blockOff + len - lag); j < n; j++) {
+						edge += (double)buffer[j] * buffer[j + lag];
+					}
+					
+					innerSums[s][k][lag] = inner;
+					edgeSums[s][k][lag] = edge;
+				}
+			}
+		}
+	}
+	
+	/*---- Methods ----*/
+	
+	// Returns the lag sums of the block of n samples starting at pos, which must be a multiple of the base size, where n is
+	// a multiple of the base size or reaches the end of the stream. The result holds the sums for lags 0 to maxLag of each
+	// channel, or for stereo of the left, right, mid and side channels in this order. Returns null if n <= maxLag.
+	public double[][] getLagSums(int pos, int n) {
+		if (pos % baseSize != 0 || n < 1 || n > numSamples - pos || (n % baseSize != 0 && pos + n != numSamples)) {
+			throw new IllegalArgumentException();
+		}
+		
+		if (n <= maxLag) {
+			return null;
+		}
+		
+		int startBlock = pos / baseSize;
+		int endBlock = startBlock + (n + baseSize - 1) / baseSize;
+		double[][] result = new double[innerSums.length][maxLag + 1];
+		
+		for (int s = 0; s < result.length; s++) {
+			double[] sums = result[s];
+			
+			for (int k = startBlock; k < endBlock; k++) {
+				double[] inner = innerSums[s][k];
+				double[] edge = edgeSums[s][k];
+				
+				for (int lag = 0; lag <= maxLag; lag++) {
+					sums[lag] += k > startBlock ? inner[lag] + edge[lag] : inner[lag];
+				}
+			}
+		}
+		
+		return stereo ? StereoCorrelation.deriveMid(result[0], result[1], result[2]) : result;
+	}
+}
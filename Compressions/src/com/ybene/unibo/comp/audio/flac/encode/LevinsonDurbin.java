@@ -0,0 +1,230 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.encode;
+
+import java.util.Objects;
+import com.ybene.unibo.comp.audio.flac.encode.SubframeEncoder.LpcAnalysis;
+
+/* 
+ * Computes linear prediction coefficients by the autocorrelation method: the signal is multiplied by a window,
+ * its autocorrelation is taken, and the Levinson-Durbin recursion solves the resulting Toeplitz system for every
+ * order up to the maximum in a single O(maxOrder^2) pass. This is much cheaper than solving a least squares system
+ * per order (see LinearPredictiveEncoder), at the cost of slightly less accurate coefficients.
+ */
+final class LevinsonDurbin {
+	
+	/*---- Static functions ----*/
+	
+	// Returns the linear prediction coefficients for every order from 1 to maxOrder of the given signal,
+	// analyzed under the given window (which must not be LEAST_SQUARES). The array at index (order - 1) has
+	// length order, and follows the layout of LinearPredictiveEncoder's real coefficients: element k is the weight
+	// of the sample that lies (order - k) positions before the predicted one.
+	// If errors is not null, then errors[order - 1] receives the energy of the prediction error of each order,
+	// rescaled to undo the attenuation of the window so that it is comparable to the energy of the raw signal.
+	public static double[][] computeCoefficients(long[] samples, LpcAnalysis window, int maxOrder, double[] errors) {
+		return computeCoefficients(samples, window, autocorrelation(samples, window, maxOrder), maxOrder, errors);
+	}
+	
+	// Same as above, but with the autocorrelation of the windowed samples supplied by the caller (see autocorrelation()).
+	public static double[][] computeCoefficients(long[] samples, LpcAnalysis window, double[] autoc, int maxOrder, double[] errors) {
+		double[][] result = computeCoefficients(autoc, maxOrder, errors);
+		
+		if (errors != null) {
+			double energy = 0;
+			
+			for (double w : getWindow(window, samples.length)) {
+				energy += w * w;
+			}
+			
+			double scale = energy > 0 ? samples.length / energy : 1;
+			
+			for (int i = 0; i < maxOrder; i++) {
+				errors[i] *= scale;
+			}
+		}
+		
+		return result;
+	}
+	
+	// Returns the lag sums result[i] = x[0]*x[i] + x[1]*x[i+1] + ... for i in [0, maxLag], where x is the given
+	// signal multiplied element-wise by the given window. Lags at or beyond the signal length have a sum of zero.
+	public static double[] autocorrelation(long[] samples, LpcAnalysis window, int maxLag) {
+		Objects.requireNonNull(samples);
+		
+		if (window == LpcAnalysis.LEAST_SQUARES || maxLag < 0) {
+			throw new IllegalArgumentException();
+		}
+		
+		int n = samples.length;
+		double[] weights = getWindow(window, n);
+		double[] x = new double[n];
+		
+		for (int i = 0; i < n; i++) {
+			x[i] = samples[i] * weights[i];
+		}
+		
+		double[] result = new double[maxLag + 1];
+		
+		for (int lag = 0; lag <= maxLag && lag < n; lag++) {
+			double sum = 0;
+			
+			for (int i = lag; i < n; i++) {
+				sum += x[i] * x[i - lag];
+			}
+			
+			result[lag] = sum;
+		}
+		
+		return result;
+	}
+	
+	// Runs the Levinson-Durbin recursion on the given autocorrelation lag sums (of length at least maxOrder + 1),
+	// returning the coefficients for every order from 1 to maxOrder in the layout described above. If the recursion
+	// cannot continue because the prediction error vanishes (e.g. on a perfectly predictable signal), then the
+	// remaining orders reuse the last usable coefficients padded with zeros. If errors is not null, then
+	// errors[order - 1] receives the energy of the prediction error that remains after each order.
+	public static double[][] computeCoefficients(double[] autoc, int maxOrder, double[] errors) {
+		Objects.requireNonNull(autoc);
+		
+		if (maxOrder < 1 || maxOrder > 32 || autoc.length < maxOrder + 1 || (errors != null && errors.length < maxOrder)) {
+			throw new IllegalArgumentException();
+		}
+		
+		double[][] result = new double[maxOrder][];
+		double[] lpc = new double[maxOrder];  // lpc[j] is the weight of the sample j + 1 positions before
+		double[] prev = new double[maxOrder];
+		double error = autoc[0];
+		
+		for (int p = 0; p < maxOrder; p++) {
+			double reflection = 0;
+			
+			if (error > 0) {
+				double sum = autoc[p + 1];
+				
+				for (int j = 0; j < p; j++) {
+					sum -= lpc[j] * autoc[p - j];
+				}
+				
+				reflection = sum / error;
+				
+				if (!(Math.abs(reflection) < 1)) {  // Numerically unstable, or NaN
+					reflection = 0;
+				}
+			}
+			
+			if (reflection != 0) {
+				System.arraycopy(lpc, 0, prev, 0, p);
+				
+				for (int j = 0; j < p; j++) {
+					lpc[j] = prev[j] - reflection * prev[p - 1 - j];
+				}
+				
+				error *= 1 - reflection * reflection;
+			}
+			
+			lpc[p] = reflection;
+			double[] coefs = new double[p + 1];
+			
+			for (int j = 0; j <= p; j++) {
+				coefs[p - j] = lpc[j];
+			}
+			
+			result[p] = coefs;
+			
+			if (errors != null) {
+				errors[p] = Math.max(error, 0);
+			}
+		}
+		
+		return result;
+	}
+	
+	/*---- Window functions ----*/
+	
+	// Returns the weights of the given window for a signal of the given length. The returned array must not be modified.
+	private static double[] getWindow(LpcAnalysis window, int n) {
+		CachedWindow cached = lastWindow;
+		
+		if (cached != null && cached.type == window && cached.weights.length == n) {
+			return cached.weights;
+		}
+		
+		double[] weights = new double[n];
+		
+		for (int i = 0; i < n; i++) {
+			weights[i] = n <= 2 ? 1 : computeWeight(window, i, n);
+		}
+		
+		lastWindow = new CachedWindow(window, weights);
+		return weights;
+	}
+	
+	// Returns the weight of the given window at index i of a signal of length n, where n >= 3.
+	private static double computeWeight(LpcAnalysis window, int i, int n) {
+		switch (window) {
+			case RECTANGULAR:
+				return 1;
+			
+			case WELCH: {
+				double half = (n - 1) / 2.0;
+				double t = (i - half) / half;
+				return 1 - t * t;
+			}
+			
+			case HANN:
+				return 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (n - 1));
+			
+			case TUKEY: {  // Tapered cosine with a ratio of 0.5, i.e. a half Hann window over a quarter at each end
+				int taper = (int)(0.25 * (n - 1));
+				
+				if (taper == 0 || (taper <= i && i <= n - 1 - taper)) {
+					return 1;
+				}
+				
+				int j = i < taper ? i : n - 1 - i;
+				return 0.5 - 0.5 * Math.cos(Math.PI * j / taper);
+			}
+			
+			default:
+				throw new IllegalArgumentException();
+		}
+	}
+	
+	// The most recently computed window, because encoding a stream nearly always uses one window at one block size.
+	private static volatile CachedWindow lastWindow = null;
+	
+	// Immutable structure.
+	private static final class CachedWindow {
+		
+		public final LpcAnalysis type;
+		public final double[] weights;
+		
+		public CachedWindow(LpcAnalysis type, double[] weights) {
+			this.type = type;
+			this.weights = weights;
+		}
+	}
+	
+	/*---- Constructors ----*/
+	
+	private LevinsonDurbin() {}  // Not instantiable
+}
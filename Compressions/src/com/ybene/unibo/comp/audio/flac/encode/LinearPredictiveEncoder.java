@@ -23,7 +23,6 @@ package com.ybene.unibo.comp.audio.flac.encode;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Objects;
 
 /* 
@@ -34,76 +33,167 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 	// Computes a good way to encode the given values under the linear predictive coding (LPC) mode of the given order,
 	// returning a size plus a new encoder object associated with the input arguments. This process of minimizing the size
 	// has an enormous search space, and it is impossible to guarantee the absolute optimal solution. The maxRiceOrder argument
-	// is used by the Rice encoder to estimate the size of coding the residual signal. The roundVars argument controls
-	// how many different coefficients are tested rounding both up and down, resulting in exponential time behavior.
-	public static SizeEstimate<SubframeEncoder> computeBest(long[] samples, int shift, int depth, int order, int roundVars, FastDotProduct fdp, int maxRiceOrder) {
+	// is used by the Rice encoder to estimate the size of coding the residual signal. The roundVars argument is the number
+	// of coefficients (those with the largest rounding errors) whose rounding direction is searched by coordinate descent,
+	// which costs up to roundVars * roundVars trial encodings in the worst case (see the comment in the body).
+	// The coded values (warm-up samples and residual) of the best rounding are stored into codedValues,
+	// and its chosen Rice parameters into params (see SubframeEncoder.computeBest()). If estimateRice is true, then the
+	// Rice coding sizes are only estimated and params is left untouched (see recomputeRiceSize()). If shifted is not null,
+	// then it holds the shifted samples for the int kernels. The real coefficients are the solution of the least squares
+	// problem set up from the dot products.
+	public static SizeEstimate<SubframeEncoder> computeBest(long[] samples, int shift, IntSignal shifted, int depth, int order, int roundVars, FastDotProduct fdp, int maxRiceOrder, boolean estimateRice, long[] codedValues, int[] params) {
 		// Check arguments
 		if (order < 1 || order > 32) {
 			throw new IllegalArgumentException();			
 		}
 		
+		return computeBest(samples, shift, shifted, depth, roundVars, new LinearPredictiveEncoder(samples, shift, depth, order, fdp), maxRiceOrder, estimateRice, codedValues, params);
+	}
+	
+	// Same as above, but with real coefficients that were computed elsewhere (e.g. by LevinsonDurbin),
+	// whose length is the order and which are laid out like the realCoefs field.
+	public static SizeEstimate<SubframeEncoder> computeBest(long[] samples, int shift, IntSignal shifted, int depth, double[] realCoefs, int roundVars, int maxRiceOrder, boolean estimateRice, long[] codedValues, int[] params) {
+		return computeBest(samples, shift, shifted, depth, roundVars, new LinearPredictiveEncoder(samples, shift, depth, realCoefs), maxRiceOrder, estimateRice, codedValues, params);
+	}
+	
+	private static SizeEstimate<SubframeEncoder> computeBest(long[] samples, int shift, IntSignal shifted, int depth, int roundVars, LinearPredictiveEncoder enc, int maxRiceOrder, boolean estimateRice, long[] codedValues, int[] params) {
+		int order = enc.order;
+		
 		if (roundVars < 0 || roundVars > order || roundVars > 30) {
 			throw new IllegalArgumentException();			
 		}
 		
-		LinearPredictiveEncoder enc = new LinearPredictiveEncoder(samples, shift, depth, order, fdp);
-		samples = shiftRight(samples, shift);
+		if (roundVars == 0) {
+			computeResidual(samples, shift, shifted, enc.coefficients, enc.coefShift, codedValues);
+			long temp = estimateRice
+				? RiceEncoder.estimateBestSizeAndOrder(codedValues, order, maxRiceOrder)
+				: RiceEncoder.computeBestSizeAndOrder(codedValues, order, maxRiceOrder, params);
+			enc.riceOrder = (int)(temp & 0xF);
+			return new SizeEstimate<SubframeEncoder>(1 + 6 + 1 + shift + order * depth + (temp >>> 4), enc);
+		}
 		
-		final double[] residues;
-		Integer[] indices = null;
-		int scaler = 1 << enc.coefShift;
+		// Search the rounding of the roundVars coefficients with the largest rounding error by coordinate descent: starting
+		// from rounding to nearest, flip one coefficient at a time to its other rounding, and keep the flip if the size drops.
+		// Passes repeat while they improve, at most roundVars times, each of up to roundVars trials. So the worst case is
+		// quadratic in roundVars instead of exponential.
+		// The prediction sums before the shift are kept, because flipping coefficient k by delta changes each of them by
+		// delta times the sample k + 1 positions back, which updates the residual in one pass instead of a full convolution.
+		ScratchArena scratch = ScratchArena.get();
+		int n = samples.length;
+		long[] x = shiftRight(samples, shift, scratch.longArray(ScratchArena.SHIFTED, n));
+		long[] sums = scratch.longArray(ScratchArena.ROUNDING_SUMS, n);
+		int[] coefs = enc.coefficients;
+		
+		for (int i = order; i < n; i++) {
+			sums[i] = 0;
+		}
 		
-		if (roundVars > 0) {
-			residues = new double[order];
-			indices = new Integer[order];
+		for (int k = 0; k < order; k++) {
+			long c = coefs[k];
 			
-			for (int i = 0; i < order; i++) {
-				residues[i] = Math.abs(Math.round(enc.realCoefs[i] * scaler) - enc.realCoefs[i] * scaler);
-				indices[i] = i;
+			for (int i = order; i < n; i++) {
+				sums[i] += x[i - 1 - k] * c;
 			}
-			
-			Arrays.sort(indices, new Comparator<Integer>() {
-				public int compare(Integer x, Integer y) {
-					return Double.compare(residues[y], residues[x]);
-				}
-			});
-		} else {			
-			residues = null;
 		}
 		
-		long bestSize = Long.MAX_VALUE;
-		int[] bestCoefs = enc.coefficients.clone();
+		// The best and trial arrays swap roles whenever a trial improves, and the best one is copied out at the end
+		long[] bestData = codedValues;
+		int[] bestParams = params;
+		long[] trialData = scratch.longArray(ScratchArena.TRIAL, n);
+		int[] trialParams = scratch.intArray(ScratchArena.TRIAL_PARAMS, 1 << maxRiceOrder);
 		
-		for (int i = 0; i < (1 << roundVars); i++) {
+		System.arraycopy(x, 0, bestData, 0, order);
+		System.arraycopy(x, 0, trialData, 0, order);
+		
+		for (int i = order; i < n; i++) {
+			bestData[i] = x[i] - (sums[i] >> enc.coefShift);
+		}
+		
+		long temp = estimateRice
+			? RiceEncoder.estimateBestSizeAndOrder(bestData, order, maxRiceOrder)
+			: RiceEncoder.computeBestSizeAndOrder(bestData, order, maxRiceOrder, bestParams);
+		long bestSize = temp >>> 4;
+		enc.riceOrder = (int)(temp & 0xF);
+		
+		// Rank the coefficients (in the layout of the coefficients field) by decreasing rounding error
+		int[] ranking = rankByRoundingError(enc);
+		int maxCoef = (1 << (enc.coefDepth - 1)) - 1;
+		boolean improved = true;
+		
+		for (int pass = 0; pass < roundVars && improved; pass++) {
+			improved = false;
+			
 			for (int j = 0; j < roundVars; j++) {
-				int k = indices[j];
-				double coef = enc.realCoefs[k];
-				int val;
+				int k = ranking[j];
+				double scaled = enc.realCoefs[order - 1 - k] * (1 << enc.coefShift);
+				int other = (int)(coefs[k] < scaled ? Math.ceil(scaled) : Math.floor(scaled));
+				other = Math.max(Math.min(other, maxCoef), -maxCoef - 1);
+				long delta = other - coefs[k];
+				
+				if (delta == 0) {
+					continue;
+				}
 				
-				if (((i >>> j) & 1) == 0) {
-					val = (int)Math.floor(coef * scaler);
-				} else {
-					val = (int)Math.ceil(coef * scaler);					
+				for (int i = order; i < n; i++) {
+					trialData[i] = x[i] - ((sums[i] + x[i - 1 - k] * delta) >> enc.coefShift);
 				}
 				
-				enc.coefficients[order - 1 - k] = Math.max(Math.min(val, (1 << (enc.coefDepth - 1)) - 1), -(1 << (enc.coefDepth - 1)));
+				temp = estimateRice
+					? RiceEncoder.estimateBestSizeAndOrder(trialData, order, maxRiceOrder)
+					: RiceEncoder.computeBestSizeAndOrder(trialData, order, maxRiceOrder, trialParams);
+				
+				if ((temp >>> 4) < bestSize) {
+					bestSize = temp >>> 4;
+					enc.riceOrder = (int)(temp & 0xF);
+					coefs[k] = other;
+					improved = true;
+					
+					for (int i = order; i < n; i++) {
+						sums[i] += x[i - 1 - k] * delta;
+					}
+					
+					long[] tempData = bestData;
+					bestData = trialData;
+					trialData = tempData;
+					int[] tempParams = bestParams;
+					bestParams = trialParams;
+					trialParams = tempParams;
+				}
 			}
+		}
+		
+		if (bestData != codedValues) {
+			System.arraycopy(bestData, 0, codedValues, 0, n);
+			System.arraycopy(bestParams, 0, params, 0, 1 << enc.riceOrder);
+		}
+		
+		return new SizeEstimate<SubframeEncoder>(1 + 6 + 1 + shift + order * depth + bestSize, enc);
+	}
+	
+	// Returns the indexes into the coefficients of the given encoder, sorted by decreasing distance between the real
+	// coefficient (scaled by the quantization shift) and the nearest integer. Equal distances keep the index order.
+	// The result is a scratch array (of at least order elements) that stays valid until the next call on this thread.
+	private static int[] rankByRoundingError(LinearPredictiveEncoder enc) {
+		int order = enc.order;
+		ScratchArena scratch = ScratchArena.get();
+		double[] errors = scratch.doubleArray(ScratchArena.ROUNDING_ERRORS, order);
+		int[] result = scratch.intArray(ScratchArena.ROUNDING_RANKING, order);
+		
+		for (int i = 0; i < order; i++) {
+			double scaled = enc.realCoefs[order - 1 - i] * (1 << enc.coefShift);
+			double error = Math.abs(Math.round(scaled) - scaled);
+			int j = i;
 			
-			long[] newData = roundVars > 0 ? samples.clone() : samples;
-			applyLpc(newData, enc.coefficients, enc.coefShift);
-			long temp = RiceEncoder.computeBestSizeAndOrder(newData, order, maxRiceOrder);
-			long size = 1 + 6 + 1 + shift + order * depth + (temp >>> 4);
-			
-			if (size < bestSize) {
-				bestSize = size;
-				bestCoefs = enc.coefficients.clone();
-				enc.riceOrder = (int)(temp & 0xF);
+			for (; j > 0 && errors[j - 1] < error; j--) {  // Insertion sort
+				errors[j] = errors[j - 1];
+				result[j] = result[j - 1];
 			}
+			
+			errors[j] = error;
+			result[j] = i;
 		}
 		
-		enc.coefficients = bestCoefs;
-		
-		return new SizeEstimate<SubframeEncoder>(bestSize, enc);
+		return result;
 	}
 	
 	private final int order;
@@ -112,35 +202,28 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 	private final int coefDepth;
 	private final int coefShift;
 	public int riceOrder;
+	private int[] riceParams;  // Can be null if unknown
 	
+	// Constructs an encoder whose coefficients solve the linear least squares problem of predicting
+	// the samples from the preceding ones, which is set up from the given dot products.
 	public LinearPredictiveEncoder(long[] samples, int shift, int depth, int order, FastDotProduct fdp) {
+		this(samples, shift, depth, solveLeastSquares(samples.length, order, fdp));
+	}
+	
+	// Constructs an encoder with the given real coefficients (which are not copied), where realCoefs[k] is the weight of the
+	// sample that lies (realCoefs.length - k) positions before the predicted one. They are quantized to 15-bit integers.
+	public LinearPredictiveEncoder(long[] samples, int shift, int depth, double[] realCoefs) {
 		super(shift, depth);
-		int numSamples = samples.length;
+		int order = realCoefs.length;
 		
-		if (order < 1 || order > 32 || numSamples < order) {
+		if (order < 1 || order > 32 || samples.length < order) {
 			throw new IllegalArgumentException();			
 		}
 		
 		this.order = order;
+		this.realCoefs = realCoefs;
 		
-		// Set up matrix to solve linear least squares problem
-		double[][] matrix = new double[order][order + 1];
-		
-		for (int r = 0; r < matrix.length; r++) {
-			for (int c = 0; c < matrix[r].length; c++) {
-				double val;
-				if (c >= r) {					
-					val = fdp.dotProduct(r, c, samples.length - order);
-				} else {					
-					val = matrix[c][r];
-				}
-				
-				matrix[r][c] = val;
-			}
-		}
-		
-		// Solve matrix, then examine range of coefficients
-		realCoefs = solveMatrix(matrix);
+		// Examine range of coefficients
 		double maxCoef = 0;
 		
 		for (double x : realCoefs) {
@@ -161,14 +244,55 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 		}
 	}
 	
-	// Solves an n * (n+1) augmented matrix (which modifies its values as a side effect),
-	// returning a new solution vector of length n.
-	private static double[] solveMatrix(double[][] mat) {
+	// Returns the real coefficients of the given order that minimize the sum of squared prediction errors
+	// over the signal of the given length, based on the dot products of the signal with itself.
+	static double[] solveLeastSquares(int numSamples, int order, FastDotProduct fdp) {
+		if (order < 1 || order > 32 || numSamples < order) {
+			throw new IllegalArgumentException();			
+		}
+		
+		// Set up matrix to solve linear least squares problem, as order rows of order + 1 elements
+		int cols = order + 1;
+		double[] matrix = ScratchArena.get().doubleArray(ScratchArena.LPC_MATRIX, order * cols);
+		
+		for (int r = 0; r < order; r++) {
+			for (int c = 0; c < cols; c++) {
+				double val;
+				if (c >= r) {					
+					val = fdp.dotProduct(r, c, numSamples - order);
+				} else {					
+					val = matrix[c * cols + r];
+				}
+				
+				matrix[r * cols + c] = val;
+			}
+		}
+		
+		return solveMatrix(matrix, order);
+	}
+	
+	// Returns the sum of squared errors when predicting the signal of the given length with the given real coefficients
+	// (unquantized, and laid out like the realCoefs field), computed from the dot products without forming the residual.
+	// This is exact for a least squares solution and never negative.
+	static double predictionError(double[] realCoefs, int numSamples, FastDotProduct fdp) {
+		int order = realCoefs.length;
+		int len = numSamples - order;
+		double result = fdp.dotProduct(order, order, len);
+		
+		for (int k = 0; k < order; k++) {
+			result -= realCoefs[k] * fdp.dotProduct(k, order, len);
+		}
+		
+		return Math.max(result, 0);
+	}
+	
+	// Solves an n * (n+1) augmented matrix stored row by row in mat[0 : n * (n+1)] (which modifies its values
+	// as a side effect), returning a new solution vector of length n.
+	private static double[] solveMatrix(double[] mat, int rows) {
 		// Gauss-Jordan elimination algorithm
-		int rows = mat.length;
-		int cols = mat[0].length;
+		int cols = rows + 1;
 		
-		if (rows + 1 != cols) {
+		if (mat.length < rows * cols) {
 			throw new IllegalArgumentException();			
 		}
 		
@@ -180,8 +304,8 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 			double pivotMag = 0;
 			
 			for (int i = numPivots; i < rows; i++) {
-				if (Math.abs(mat[i][j]) > pivotMag) {
-					pivotMag = Math.abs(mat[i][j]);
+				if (Math.abs(mat[i * cols + j]) > pivotMag) {
+					pivotMag = Math.abs(mat[i * cols + j]);
 					pivotRow = i;
 				}
 			}
@@ -190,37 +314,43 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 				continue;				
 			}
 			
-			double[] temp = mat[numPivots];
-			mat[numPivots] = mat[pivotRow];
-			mat[pivotRow] = temp;
+			for (int k = 0; k < cols; k++) {
+				double temp = mat[numPivots * cols + k];
+				mat[numPivots * cols + k] = mat[pivotRow * cols + k];
+				mat[pivotRow * cols + k] = temp;
+			}
+			
 			pivotRow = numPivots;
 			numPivots++;
 			
-			double factor = mat[pivotRow][j];
+			int pivotOff = pivotRow * cols;
+			double factor = mat[pivotOff + j];
 			
 			for (int k = 0; k < cols; k++) {
-				mat[pivotRow][k] /= factor;				
+				mat[pivotOff + k] /= factor;				
 			}
 			
-			mat[pivotRow][j] = 1;
+			mat[pivotOff + j] = 1;
 			
 			for (int i = pivotRow + 1; i < rows; i++) {
-				factor = mat[i][j];
+				int off = i * cols;
+				factor = mat[off + j];
 				
 				for (int k = 0; k < cols; k++) {
-					mat[i][k] -= mat[pivotRow][k] * factor;					
+					mat[off + k] -= mat[pivotOff + k] * factor;					
 				}
 				
-				mat[i][j] = 0;
+				mat[off + j] = 0;
 			}
 		}
 		
 		// Back substitution
 		double[] result = new double[rows];
 		for (int i = numPivots - 1; i >= 0; i--) {
+			int off = i * cols;
 			int pivotCol = 0;
 			
-			while (pivotCol < cols && mat[i][pivotCol] == 0) {
+			while (pivotCol < cols && mat[off + pivotCol] == 0) {
 				pivotCol++;				
 			}
 			
@@ -228,16 +358,17 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 				continue;				
 			}
 			
-			result[pivotCol] = mat[i][cols - 1];
+			result[pivotCol] = mat[off + cols - 1];
 			
 			for (int j = i - 1; j >= 0; j--) {
-				double factor = mat[j][pivotCol];
+				int rowOff = j * cols;
+				double factor = mat[rowOff + pivotCol];
 				
 				for (int k = 0; k < cols; k++) {					
-					mat[j][k] -= mat[i][k] * factor;
+					mat[rowOff + k] -= mat[off + k] * factor;
 				}
 				
-				mat[j][pivotCol] = 0;
+				mat[rowOff + pivotCol] = 0;
 			}
 		}
 		
@@ -245,20 +376,27 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 	}
 	
 	public void encode(long[] samples, BitOutputStream out) throws IOException {
-		Objects.requireNonNull(samples);
+		encode(samples, null, out);
+	}
+	
+	void encode(long[] samples, long[] codedValues, BitOutputStream out) throws IOException {
 		Objects.requireNonNull(out);
 		
-		if (samples.length < order) {
-			throw new IllegalArgumentException();			
+		if (codedValues == null) {
+			Objects.requireNonNull(samples);
+			
+			if (samples.length < order) {
+				throw new IllegalArgumentException();			
+			}
+			
+			codedValues = shiftRight(samples, sampleShift, ScratchArena.get().longArray(ScratchArena.SHIFTED, samples.length));
+			applyLpc(codedValues, coefficients, coefShift);
 		}
 		
 		writeTypeAndShift(32 + order - 1, out);
-		samples = shiftRight(samples, sampleShift);
 		
-		// Warmup
-		for (int i = 0; i < order; i++) {			
-			writeRawSample(samples[i], out);
-		}
+		// Warmup (left untouched by the prediction)
+		writeRawSamples(codedValues, 0, order, out);
 		
 		out.writeInt(4, coefDepth - 1);
 		out.writeInt(5, coefShift);
@@ -267,8 +405,17 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 			out.writeInt(coefDepth, x);
 		}
 		
-		applyLpc(samples, coefficients, coefShift);
-		RiceEncoder.encode(samples, order, riceOrder, out);
+		RiceEncoder.encode(codedValues, order, riceOrder, riceParams, out);
+	}
+	
+	long recomputeRiceSize(long size, long[] codedValues, int maxRiceOrder, int[] params) {
+		long temp = RiceEncoder.computeBestSizeAndOrder(codedValues, order, maxRiceOrder, params);
+		riceOrder = (int)(temp & 0xF);
+		return 1 + 6 + 1 + sampleShift + order * sampleDepth + (temp >>> 4);
+	}
+	
+	void retainRiceParams(int[] params) {
+		riceParams = Arrays.copyOf(params, 1 << riceOrder);
 	}
 	
 	/*---- Static helper functions ----*/
@@ -277,9 +424,10 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 	// data[i] - ((data[i-1]*coefs[0] + data[i-2]*coefs[1] + ... + data[i-coefs.length]*coefs[coefs.length]) >> shift).
 	// By FLAC parameters, each data[i] must fit in a signed 33-bit integer, each coef must fit in signed int15, and coefs.length <= 32.
 	// When these preconditions are met, they guarantee the lack of arithmetic overflow in the computation and results,
-	// and each value written back to the data array fits in a signed int53.
+	// and each value written back to the data array fits in a signed int53. The data is trusted to fit in int33,
+	// which is only scanned for when assertions are enabled (see SubframeEncoder.fitsSignedBits()).
 	static void applyLpc(long[] data, int[] coefs, int shift) {
-		// Check arguments and arrays strictly
+		// Check arguments
 		Objects.requireNonNull(data);
 		Objects.requireNonNull(coefs);
 		
@@ -287,13 +435,7 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 			throw new IllegalArgumentException();
 		}
 		
-		for (long x : data) {
-			x >>= 32;
-			// Check if it fits in signed int33
-			if (x != 0 && x != -1) {
-				throw new IllegalArgumentException();				
-			}
-		}
+		assert SubframeEncoder.fitsSignedBits(data, 0, data.length, 33);
 		
 		for (int x : coefs) {
 			x >>= 14;
@@ -312,25 +454,31 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 			}
 			
 			long val = data[i] - (sum >> shift);
-			
-			// Check if it fits in signed int53
-			if ((val >> 52) != 0 && (val >> 52) != -1) {
-				throw new AssertionError();				
-			}
-			
+			assert (val >> 52) == 0 || (val >> 52) == -1;  // Fits in signed int53
 			data[i] = val;
 		}
 	}
 	
-	// Returns a new array where each result[i] = data[i] >> shift.
-	static long[] shiftRight(long[] data, int shift) {
+	// Stores into dest (of the same length as samples) the shifted samples (samples[i] >> shift) after applying linear prediction
+	// with the given coefficients, like shiftRight() followed by applyLpc(). If shifted is not null, then it must hold the
+	// shifted samples, and the int kernel is used instead.
+	static void computeResidual(long[] samples, int shift, IntSignal shifted, int[] coefs, int coefShift, long[] dest) {
+		if (shifted != null) {
+			shifted.applyLpc(coefs, coefShift, dest);
+		} else {
+			shiftRight(samples, shift, dest);
+			applyLpc(dest, coefs, coefShift);
+		}
+	}
+	
+	// Sets each result[i] = data[i] >> shift, and returns the result array (which has the same length as data).
+	static long[] shiftRight(long[] data, int shift, long[] result) {
 		Objects.requireNonNull(data);
 		
-		if (shift < 0 || shift > 63) {			
+		if (shift < 0 || shift > 63 || result.length != data.length) {			
 			throw new IllegalArgumentException();
 		}
 		
-		long[] result = new long[data.length];
 		
 		for (int i = 0; i < data.length; i++) {
 			result[i] = data[i] >> shift;			
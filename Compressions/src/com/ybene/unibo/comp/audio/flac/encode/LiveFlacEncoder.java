@@ -0,0 +1,290 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.encode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import com.ybene.unibo.comp.audio.flac.common.StreamInfo;
+
+/* 
+ * Encodes audio captured in real time to a FLAC stream on a plain output stream, emitting every frame as soon as its block
+ * is complete. Samples are pushed in planar form with write() or as interleaved PCM bytes with writePcm(). Because the output
+ * cannot be rewound, the stream info block is written up front with the total sample count, MD5 hash and frame size bounds
+ * left unknown (which the format allows); getStreamInfo() holds the final values once the encoder is closed.
+ * 
+ * The search effort follows the load, i.e. the encoding time of a frame divided by the duration of its audio. The encoder
+ * walks a ladder of search options from the most to the least thorough: it steps down a rung when the smoothed load exceeds
+ * the step-down threshold or a frame misses its deadline (load of 1 or more), and steps back up when the smoothed load has
+ * stayed below the step-up threshold for a while. The gap between the thresholds should exceed the cost ratio between
+ * adjacent rungs, or the level oscillates. Not thread safe.
+ */
+public final class LiveFlacEncoder implements AutoCloseable {
+	
+	/*---- Constants ----*/
+	
+	public static final double DEFAULT_STEP_DOWN_LOAD = 0.75;
+	public static final double DEFAULT_STEP_UP_LOAD = 0.25;
+	
+	private static final double LOAD_SMOOTHING = 0.125;  // Weight of the newest frame in the moving average of the load
+	private static final int HOLD_FRAMES = 16;  // Frames to measure at a rung before stepping up from it
+	
+	/*---- Fields ----*/
+	
+	private final StreamInfo info;
+	private final int blockSize;
+	private final SubframeEncoder.SearchOptions[] ladder;
+	private final double stepDownLoad;
+	private final double stepUpLoad;
+	private final ExecutorService searchExecutor;  // Can be null
+	
+	private final BitOutputStream out;  // Wraps the caller's stream, which is flushed after every frame
+	private boolean closed;
+	
+	private final long[][] block;  // Samples of the block currently being filled, upcasted to long
+	private int blockLen;  // Number of valid samples per channel in the block, in the range [0, blockSize)
+	private long sampleOffset;  // Number of samples per channel encoded so far
+	
+	private int level;  // Index of the current rung in the ladder
+	private int framesAtLevel;  // Number of full frames encoded since the last level change
+	private double load;  // Moving average of the load at the current level, or NaN before its first frame
+	
+	/*---- Constructors ----*/
+	
+	// Constructs a live encoder with the default ladder (SUBSET_BEST, SUBSET_MEDIUM, SUBSET_ONLY_FIXED) and thresholds,
+	// searching on the calling thread. The header and the provisional stream info block are written immediately.
+	public LiveFlacEncoder(OutputStream out, int sampleRate, int numChannels, int sampleDepth, int blockSize) throws IOException {
+		this(out, sampleRate, numChannels, sampleDepth, blockSize, new SubframeEncoder.SearchOptions[] {
+				SubframeEncoder.SearchOptions.SUBSET_BEST,
+				SubframeEncoder.SearchOptions.SUBSET_MEDIUM,
+				SubframeEncoder.SearchOptions.SUBSET_ONLY_FIXED},
+			DEFAULT_STEP_DOWN_LOAD, DEFAULT_STEP_UP_LOAD, null);
+	}
+	
+	// Constructs a live encoder that starts at ladder[0] and adapts with the given load thresholds, where
+	// 0 < stepUpLoad < stepDownLoad <= 1. If searchExecutor is not null, then the search of each frame is spread over it
+	// (see FrameEncoder), which lowers the load on several cores. The caller remains responsible for closing the stream
+	// and the executor, after this encoder is closed.
+	public LiveFlacEncoder(OutputStream out, int sampleRate, int numChannels, int sampleDepth, int blockSize,
+			SubframeEncoder.SearchOptions[] ladder, double stepDownLoad, double stepUpLoad, ExecutorService searchExecutor) throws IOException {
+		
+		Objects.requireNonNull(out);
+		
+		if (ladder.length == 0 || blockSize < 16 || blockSize > 65535) {
+			throw new IllegalArgumentException();
+		}
+		
+		for (SubframeEncoder.SearchOptions opt : ladder) {
+			Objects.requireNonNull(opt);
+		}
+		
+		if (!(0 < stepUpLoad && stepUpLoad < stepDownLoad && stepDownLoad <= 1)) {
+			throw new IllegalArgumentException("Invalid load thresholds");
+		}
+		
+		this.blockSize = blockSize;
+		this.ladder = ladder.clone();
+		this.stepDownLoad = stepDownLoad;
+		this.stepUpLoad = stepUpLoad;
+		this.searchExecutor = searchExecutor;
+		
+		info = new StreamInfo();
+		info.sampleRate = sampleRate;
+		info.numChannels = numChannels;
+		info.sampleDepth = sampleDepth;
+		info.minBlockSize = blockSize;
+		info.maxBlockSize = blockSize;
+		info.checkValues();
+		
+		block = new long[numChannels][blockSize];
+		blockLen = 0;
+		sampleOffset = 0;
+		level = 0;
+		framesAtLevel = 0;
+		load = Double.NaN;
+		
+		this.out = new BitOutputStream(out);
+		closed = false;
+		this.out.writeInt(32, 0x664C6143);
+		info.write(true, this.out);
+		this.out.flush();
+	}
+	
+	/*---- Methods ----*/
+	
+	// Appends the planar samples[ : ][off : off + len] to the stream, encoding and emitting every block that fills up.
+	// There must be one subarray per channel, and each value must fit in a signed integer of the stream's sample depth.
+	public void write(int[][] samples, int off, int len) throws IOException {
+		checkOpen();
+		FlacEncoder.checkSamples(samples, off, len, block.length, info.sampleDepth);
+		
+		while (len > 0) {
+			int n = Math.min(blockSize - blockLen, len);
+			
+			for (int ch = 0; ch < block.length; ch++) {
+				int[] src = samples[ch];
+				long[] dest = block[ch];
+				
+				for (int i = 0; i < n; i++) {
+					dest[blockLen + i] = src[off + i];
+				}
+			}
+			
+			blockLen += n;
+			off += n;
+			len -= n;
+			
+			if (blockLen == blockSize) {
+				encodeBlock();
+			}
+		}
+	}
+	
+	// Appends the interleaved little-endian PCM in b[off : off + len] (as captured from a sound card or found in a WAV file),
+	// encoding and emitting every block that fills up. The sample depth must be a multiple of 8, and the range must hold a
+	// whole number of samples per channel. Samples of 8 bits are unsigned, wider ones are signed.
+	public void writePcm(byte[] b, int off, int len) throws IOException {
+		checkOpen();
+		Objects.requireNonNull(b);
+		int sampleDepth = info.sampleDepth;
+		
+		if (sampleDepth % 8 != 0) {
+			throw new UnsupportedOperationException("Only whole-byte sample depth supported");
+		}
+		
+		if (off < 0 || len < 0 || b.length - off < len) {
+			throw new IndexOutOfBoundsException();
+		}
+		
+		int frameBytes = block.length * (sampleDepth / 8);
+		
+		if (len % frameBytes != 0) {
+			throw new IllegalArgumentException("Partial sample");
+		}
+		
+		for (int numSamples = len / frameBytes; numSamples > 0; ) {
+			int n = Math.min(blockSize - blockLen, numSamples);
+			StreamingFlacEncoder.decodePcm(b, off, n, sampleDepth, block, blockLen);
+			blockLen += n;
+			off += n * frameBytes;
+			numSamples -= n;
+			
+			if (blockLen == blockSize) {
+				encodeBlock();
+			}
+		}
+	}
+	
+	// Encodes and emits the final partial block (if any), and fills in the total number of samples and the frame size bounds
+	// of the stream info returned by getStreamInfo(). The underlying stream is flushed but left open.
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		
+		if (blockLen > 0) {
+			encodeBlock();
+		}
+		
+		info.numSamples = sampleOffset;
+		out.flush();
+		closed = true;
+	}
+	
+	// Returns the stream info of this stream. Its total sample count and frame size bounds are final only after close(),
+	// for a caller that stores the stream and can patch its header. The MD5 hash is not computed. Must not be modified.
+	public StreamInfo getStreamInfo() {
+		return info;
+	}
+	
+	// Returns the index in the ladder of the search options that the next frame will be encoded with.
+	public int getSearchLevel() {
+		return level;
+	}
+	
+	// Returns the moving average of the load (encoding time over audio duration) at the current search level,
+	// or NaN if no full frame has been encoded at this level yet.
+	public double getLoad() {
+		return load;
+	}
+	
+	// Returns the number of samples per channel accepted so far, including the ones of the pending partial block.
+	public long getNumSamples() {
+		return sampleOffset + blockLen;
+	}
+	
+	// Encodes and emits the current block (which may be partial) as one frame, then adapts the search level to its load.
+	private void encodeBlock() throws IOException {
+		if ((sampleOffset + blockLen) >>> 36 != 0) {
+			throw new IllegalStateException("Too many samples for a FLAC stream");
+		}
+		
+		long startTime = System.nanoTime();
+		long[][] samples = block;
+		
+		if (blockLen < blockSize) {
+			samples = new long[block.length][];
+			
+			for (int ch = 0; ch < block.length; ch++) {
+				samples[ch] = Arrays.copyOf(block[ch], blockLen);
+			}
+		}
+		
+		FrameEncoder enc = FrameEncoder.computeBest(sampleOffset, samples, info.sampleDepth, info.sampleRate, ladder[level], null, searchExecutor).encoder;
+		long startByte = out.getByteCount();
+		enc.encode(samples, out);
+		out.flush();
+		FlacEncoder.updateFrameSizes(info, out.getByteCount() - startByte);
+		
+		if (blockLen == blockSize) {  // The final partial block is not representative of the load
+			adaptLevel((System.nanoTime() - startTime) / 1e9 * info.sampleRate / blockLen);
+		}
+		
+		sampleOffset += blockLen;
+		blockLen = 0;
+	}
+	
+	// Folds the load of the frame just encoded into the moving average, and moves along the ladder if warranted.
+	private void adaptLevel(double frameLoad) {
+		load = Double.isNaN(load) ? frameLoad : load + (frameLoad - load) * LOAD_SMOOTHING;
+		framesAtLevel++;
+		
+		if ((load > stepDownLoad || frameLoad >= 1) && level < ladder.length - 1) {
+			level++;
+		} else if (load < stepUpLoad && framesAtLevel >= HOLD_FRAMES && level > 0) {
+			level--;
+		} else {
+			return;
+		}
+		
+		framesAtLevel = 0;
+		load = Double.NaN;
+	}
+	
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Encoder closed");
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.encode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/* 
+ * Fans the independent searches within one frame (the channels of a frame, and the LPC orders of a subframe) out onto an
+ * executor, and joins them. The calling thread runs every task that no worker has started yet, so the join never waits
+ * for queued work: this keeps nested fan-outs (orders within channels) free of deadlock on any executor size, and makes
+ * the search degrade gracefully to serial when the executor is busy. Each task uses the scratch arena of the thread
+ * running it, so a task must not rely on arena slots being shared with its caller, and the executor must not be
+ * a pool whose threads are in the middle of a frame search of their own (e.g. the one running frames in parallel).
+ */
+final class ParallelSearch {
+	
+	/*---- Static functions ----*/
+	
+	// Runs the given tasks concurrently on the executor and the calling thread, and returns their results in the same order.
+	// If a task fails, then its exception (unchecked, or wrapped in an IllegalStateException if checked) is rethrown once
+	// every task has finished. The interrupt status of the calling thread is preserved, but does not cut the wait short.
+	public static <T> List<T> invokeAll(Executor executor, List<Callable<T>> tasks) {
+		List<FutureTask<T>> futures = new ArrayList<>(tasks.size());
+		
+		for (Callable<T> task : tasks) {
+			FutureTask<T> future = new FutureTask<>(task);
+			futures.add(future);
+			
+			if (futures.size() > 1) {  // The first task is left for the calling thread
+				executor.execute(future);
+			}
+		}
+		
+		// Run whatever the workers have not picked up yet; run() does nothing on a task that has already started
+		for (FutureTask<T> future : futures) {
+			future.run();
+		}
+		
+		List<T> result = new ArrayList<>(futures.size());
+		boolean interrupted = false;
+		RuntimeException failure = null;
+		
+		for (FutureTask<T> future : futures) {
+			while (true) {
+				try {
+					result.add(future.get());
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					
+					if (cause instanceof Error) {
+						throw (Error)cause;
+					} else if (failure == null) {
+						failure = cause instanceof RuntimeException ? (RuntimeException)cause : new IllegalStateException(cause);
+					}
+					
+					result.add(null);
+					break;
+				}
+			}
+		}
+		
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		
+		if (failure != null) {
+			throw failure;
+		}
+		
+		return result;
+	}
+	
+	/*---- Constructors ----*/
+	
+	private ParallelSearch() {}  // Not instantiable
+}
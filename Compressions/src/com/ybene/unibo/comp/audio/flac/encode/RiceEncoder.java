@@ -22,6 +22,7 @@
 package com.ybene.unibo.comp.audio.flac.encode;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Objects;
 
 /* 
@@ -32,11 +33,18 @@ final class RiceEncoder {
 	/*---- Functions for size calculation ---*/
 	
 	// Calculates the best number of bits and partition order needed to encode the values data[warmup : data.length].
-	// Each value in that subrange of data must fit in a signed 53-bit integer. The result is packed in the form
+	// Each value in that subrange of data must fit in a signed 53-bit integer, which is trusted and only checked when
+	// assertions are enabled (see SubframeEncoder.fitsSignedBits()). The result is packed in the form
 	// ((bestSize << 4) | bestOrder), where bestSize is an unsigned integer and bestOrder is a uint4.
 	// Note that the partition orders searched, and hence the resulting bestOrder, are in the range [0, maxPartOrder].
 	public static long computeBestSizeAndOrder(long[] data, int warmup, int maxPartOrder) {
-		// Check arguments strictly
+		return computeBestSizeAndOrder(data, warmup, maxPartOrder, null);
+	}
+	
+	// Same as above, but if params is not null then params[0 : 1 << bestOrder] receives the parameter chosen for each partition,
+	// in the format taken by encode(data, warmup, order, params, out). Its length must be at least 1 << maxPartOrder.
+	static long computeBestSizeAndOrder(long[] data, int warmup, int maxPartOrder, int[] params) {
+		// Check arguments
 		Objects.requireNonNull(data);
 		
 		if (warmup < 0 || warmup > data.length) {			
@@ -47,45 +55,59 @@ final class RiceEncoder {
 			throw new IllegalArgumentException();			
 		}
 		
-		for (long x : data) {
-			x >>= 52;
-			// Check that it fits in a signed int53
-			if (x != 0 && x != -1) {
-				throw new IllegalArgumentException();				
-			}
-		}
+		assert SubframeEncoder.fitsSignedBits(data, 0, data.length, 53);
 		
-		long bestSize = Integer.MAX_VALUE;
-		int bestOrder = -1;
+		int finestOrder = getFinestPartitionOrder(data.length, warmup, maxPartOrder);
+		int numPartitions = 1 << finestOrder;
+		int partSize = data.length >>> finestOrder;
+		ScratchArena scratch = ScratchArena.get();
+		int[] escapeBits = scratch.intArray(ScratchArena.RICE_ESCAPE_BITS, numPartitions);
+		long[] bitsAtParam = scratch.longArray(ScratchArena.RICE_BITS_AT_PARAM, numPartitions * 16);
+		Arrays.fill(escapeBits, 0, numPartitions, 0);
+		Arrays.fill(bitsAtParam, 0, numPartitions * 16, 0);
 		
-		int[] escapeBits = null;
-		int[] bitsAtParam = null;
+		for (int i = warmup; i < data.length; i++) {
+			int j = i / partSize;
+			long val = data[i];
+			escapeBits[j] = Math.max(65 - Long.numberOfLeadingZeros(val ^ (val >> 63)), escapeBits[j]);
+			val = (val >= 0) ? (val << 1) : (((-val) << 1) - 1);
+			
+			for (int param = 0; param < 15; param++, val >>>= 1) {
+				bitsAtParam[param + j * 16] += val + 1 + param;						
+			}
+		}
 		
+		return searchPartitionOrders(escapeBits, bitsAtParam, data.length, warmup, finestOrder, params);
+	}
+	
+	// Returns the largest partition order in [0, maxPartOrder] that splits the given number of values into equal partitions
+	// none of which is shorter than the warm-up. Every lower order then qualifies too. Throws if no order qualifies.
+	static int getFinestPartitionOrder(int length, int warmup, int maxPartOrder) {
 		for (int order = maxPartOrder; order >= 0; order--) {
-			int partSize = data.length >>> order;
+			int partSize = length >>> order;
 			
-			if ((partSize << order) != data.length || partSize < warmup) {
-				continue;				
+			if ((partSize << order) == length && partSize >= warmup) {
+				return order;
 			}
-			
+		}
+		
+		throw new AssertionError();
+	}
+	
+	// Finds the best partition order and its size like computeBestSizeAndOrder(), given the statistics of the partitions
+	// at the finest order: for partition i, escapeBits[i] is the width of the widest value (in two's complement) and
+	// bitsAtParam[param + i * 16] is the Rice coded size of its values at each parameter in [0, 15). The arrays
+	// are overwritten while merging the partitions of the coarser orders. The sizes are kept in long arithmetic, because
+	// the low parameters of a partition of wide values cost more bits than an int holds, and the emitted parameters come from them.
+	static long searchPartitionOrders(int[] escapeBits, long[] bitsAtParam, int length, int warmup, int finestOrder, int[] params) {
+		long bestSize = Long.MAX_VALUE;
+		int bestOrder = -1;
+		
+		for (int order = finestOrder; order >= 0; order--) {
+			int partSize = length >>> order;
 			int numPartitions = 1 << order;
 			
-			// And bitsAtParam == null
-			if (escapeBits == null) {  
-				escapeBits = new int[numPartitions];
-				bitsAtParam = new int[numPartitions * 16];
-				
-				for (int i = warmup; i < data.length; i++) {
-					int j = i / partSize;
-					long val = data[i];
-					escapeBits[j] = Math.max(65 - Long.numberOfLeadingZeros(val ^ (val >> 63)), escapeBits[j]);
-					val = (val >= 0) ? (val << 1) : (((-val) << 1) - 1);
-					
-					for (int param = 0; param < 15; param++, val >>>= 1) {
-						bitsAtParam[param + j * 16] += val + 1 + param;						
-					}
-				}
-			} else {  // Both arrays are non-null
+			if (order < finestOrder) {
 				// Logically halve the size of both arrays (but without reallocating to the true new size)
 				for (int i = 0; i < numPartitions; i++) {
 					int j = i << 1;
@@ -100,7 +122,7 @@ final class RiceEncoder {
 			long size = 4 + (4 << order);
 			
 			for (int i = 0; i < numPartitions; i++) {
-				int min = Integer.MAX_VALUE;
+				long min = Long.MAX_VALUE;
 				
 				if (escapeBits[i] <= 31) {
 					min = 5 + escapeBits[i] * (partSize - (i == 0 ? warmup : 0));					
@@ -116,16 +138,142 @@ final class RiceEncoder {
 			if (size < bestSize) {
 				bestSize = size;
 				bestOrder = order;
+				
+				if (params != null) {
+					for (int i = 0; i < numPartitions; i++) {
+						params[i] = bestParam(escapeBits, bitsAtParam, i, partSize - (i == 0 ? warmup : 0));
+					}
+				}
 			}
 		}
 		
-		if (bestSize == Integer.MAX_VALUE || (bestOrder >>> 4) != 0) {
+		if (bestSize == Long.MAX_VALUE || (bestOrder >>> 4) != 0) {
 			throw new AssertionError();			
 		}
 		
 		return bestSize << 4 | bestOrder;
 	}
 	
+	// Estimates the number of bits and the partition order needed to encode the values data[warmup : data.length], returning
+	// them packed like computeBestSizeAndOrder(). Instead of costing every Rice parameter on every value, this only sums the
+	// zigzag-mapped magnitudes of each partition and derives a near-optimal parameter and its cost in closed form.
+	// Escape codes are not considered. The result is close to the exact size, but can be off in either direction.
+	static long estimateBestSizeAndOrder(long[] data, int warmup, int maxPartOrder) {
+		// Check arguments
+		Objects.requireNonNull(data);
+		
+		if (warmup < 0 || warmup > data.length) {			
+			throw new IllegalArgumentException();
+		}
+		
+		if (maxPartOrder < 0 || maxPartOrder > 15) {
+			throw new IllegalArgumentException();			
+		}
+		
+		assert SubframeEncoder.fitsSignedBits(data, 0, data.length, 53);
+		
+		int finestOrder = getFinestPartitionOrder(data.length, warmup, maxPartOrder);
+		long[] sums = ScratchArena.get().longArray(ScratchArena.RICE_SUMS, 1 << finestOrder);
+		long accumulator = EncoderKernels.zigzagPartitionSums(data, warmup, data.length >>> finestOrder, sums);
+		
+		// The sums of a block of at most 65536 values cannot overflow below this magnitude
+		if ((accumulator >>> 46) != 0) {
+			return computeBestSizeAndOrder(data, warmup, maxPartOrder, null);
+		}
+		
+		return estimatePartitionOrders(sums, data.length, warmup, finestOrder);
+	}
+	
+	// Finds the estimated best partition order and its size like estimateBestSizeAndOrder(), given the sums of the
+	// zigzag-mapped values of each partition at the finest order. The array is overwritten while merging partitions.
+	static long estimatePartitionOrders(long[] sums, int length, int warmup, int finestOrder) {
+		long bestSize = Long.MAX_VALUE;
+		int bestOrder = -1;
+		
+		for (int order = finestOrder; order >= 0; order--) {
+			int partSize = length >>> order;
+			int numPartitions = 1 << order;
+			
+			if (order < finestOrder) {
+				// Logically halve the size of the array (but without reallocating to the true new size)
+				for (int i = 0; i < numPartitions; i++) {
+					sums[i] = sums[i << 1] + sums[(i << 1) + 1];
+				}
+			}
+			
+			long size = 4 + (4 << order);
+			
+			for (int i = 0; i < numPartitions; i++) {
+				size += estimatePartitionSize(sums[i], partSize - (i == 0 ? warmup : 0));
+			}
+			
+			if (size < bestSize) {
+				bestSize = size;
+				bestOrder = order;
+			}
+		}
+		
+		if (bestSize == Long.MAX_VALUE || (bestOrder >>> 4) != 0) {
+			throw new AssertionError();			
+		}
+		
+		return bestSize << 4 | bestOrder;
+	}
+	
+	// Estimates the number of bits needed to Rice code the given number of values whose zigzag-mapped magnitudes have the
+	// given sum, excluding the parameter field. The optimum lies at or next to the binary logarithm of their mean.
+	private static long estimatePartitionSize(long sum, int count) {
+		if (count == 0) {
+			return 0;
+		}
+		
+		long mean = sum / count;
+		int param = mean > 0 ? Math.min(63 - Long.numberOfLeadingZeros(mean), 14) : 0;
+		long result = estimateRiceSize(sum, count, param);
+		
+		if (param > 0) {
+			result = Math.min(estimateRiceSize(sum, count, param - 1), result);
+		}
+		
+		if (param < 14) {
+			result = Math.min(estimateRiceSize(sum, count, param + 1), result);
+		}
+		
+		return result;
+	}
+	
+	// Each value v costs (v >>> param) + 1 + param bits. Summing the quotients instead of truncating each one
+	// overcounts by about half a unit per value when param > 0, which is subtracted.
+	private static long estimateRiceSize(long sum, int count, int param) {
+		long unary = sum >>> param;
+		
+		if (param > 0) {
+			unary = Math.max(unary - (count >>> 1), 0);
+		}
+		
+		return unary + (long)count * (1 + param);
+	}
+	
+	// Returns the cheapest parameter for partition i given its statistics, breaking ties the same way as computeBestSizeAndParam().
+	private static int bestParam(int[] escapeBits, long[] bitsAtParam, int i, int count) {
+		int result = 0;
+		long min = Long.MAX_VALUE;
+		
+		if (escapeBits[i] <= 31) {
+			min = 5 + escapeBits[i] * count;
+			result = 16 + escapeBits[i];
+		}
+		
+		for (int param = 0; param < 15; param++) {
+			if (bitsAtParam[param + i * 16] < min) {
+				min = bitsAtParam[param + i * 16];
+				result = param;
+			}
+		}
+		
+		return result;
+	}
+	
 	// Calculates the number of bits needed to encode the sequence of values
 	// data[start : end] with an optimally chosen Rice parameter.
 	private static long computeBestSizeAndParam(long[] data, int start, int end) {
@@ -186,7 +334,13 @@ final class RiceEncoder {
 	// Encodes the sequence of values data[warmup : data.length] with an appropriately chosen order and Rice parameters.
 	// Each value in data must fit in a signed 53-bit integer.
 	public static void encode(long[] data, int warmup, int order, BitOutputStream out) throws IOException {
-		// Check arguments strictly
+		encode(data, warmup, order, null, out);
+	}
+	
+	// Same as above, but if params is not null then it supplies the parameter of each partition (as found by
+	// computeBestSizeAndOrder() for the same data and order), so that they are not searched again.
+	static void encode(long[] data, int warmup, int order, int[] params, BitOutputStream out) throws IOException {
+		// Check arguments
 		Objects.requireNonNull(data);
 		Objects.requireNonNull(out);
 		
@@ -198,13 +352,7 @@ final class RiceEncoder {
 			throw new IllegalArgumentException();			
 		}
 		
-		for (long x : data) {
-			x >>= 52;
-			// Check that it fits in a signed int53
-			if (x != 0 && x != -1) {
-				throw new IllegalArgumentException();				
-			}
-		}
+		assert SubframeEncoder.fitsSignedBits(data, 0, data.length, 53);
 		
 		out.writeInt(2, 0);
 		out.writeInt(4, order);
@@ -214,47 +362,27 @@ final class RiceEncoder {
 		int end = data.length >>> order;
 		
 		for (int i = 0; i < numPartitions; i++) {
-			int param = (int)computeBestSizeAndParam(data, start, end) & 0x3F;
+			int param = params != null ? params[i] : (int)computeBestSizeAndParam(data, start, end) & 0x3F;
 			encode(data, start, end, param, out);
 			start = end;
 			end += data.length >>> order;
 		}
 	}
 	
-	// Encodes the sequence of values data[start : end] with the given Rice parameter.
+	// Encodes the sequence of values data[start : end] with the given Rice parameter, or in escape mode
+	// with values of (param - 16) bits each if param >= 16.
 	private static void encode(long[] data, int start, int end, int param, BitOutputStream out) throws IOException {
-		assert 0 <= param && param <= 31 && data != null && out != null;
+		assert (0 <= param && param < 15 || 16 <= param && param <= 16 + 31) && data != null && out != null;
 		assert 0 <= start && start <= end && end <= data.length;
 		
 		if (param < 15) {
 			out.writeInt(4, param);
-			
-			for (int j = start; j < end; j++) {
-				writeRiceSignedInt(data[j], param, out);				
-			}
+			out.writeRiceSignedInts(param, data, start, end);
 		} else {
 			out.writeInt(4, 15);
 			int numBits = param - 16;
 			out.writeInt(5, numBits);
-			
-			for (int j = start; j < end; j++) {
-				out.writeInt(numBits, (int)data[j]);
-			}
+			out.writeInts(numBits, data, start, end);
 		}
 	}
-	
-	private static void writeRiceSignedInt(long val, int param, BitOutputStream out) throws IOException {
-		assert 0 <= param && param <= 31 && out != null;
-		assert (val >> 52) == 0 || (val >> 52) == -1;  // Fits in a signed int53
-		
-		long unsigned = val >= 0 ? val << 1 : ((-val) << 1) - 1;
-		int unary = (int)(unsigned >>> param);
-		
-		for (int i = 0; i < unary; i++) {
-			out.writeInt(1, 0);			
-		}
-		
-		out.writeInt(1, 1);
-		out.writeInt(param, (int)unsigned);
-	}
 }
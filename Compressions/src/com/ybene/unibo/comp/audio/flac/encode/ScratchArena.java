@@ -0,0 +1,162 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.encode;
+
+/* 
+ * A per-thread set of reusable work arrays for the encoder's hot path, so that encoding a frame in the steady state
+ * allocates almost nothing. Each array is identified by a slot number, and every slot belongs to exactly one call site,
+ * which guarantees that two arrays which are live at the same time never alias each other. An array obtained from
+ * a slot stays valid until the same slot is requested again on the same thread, hence it must not be retained
+ * beyond the current operation (e.g. by an encoder object). The contents of a returned array are arbitrary.
+ */
+final class ScratchArena {
+	
+	/*---- Slot numbers ----*/
+	
+	public static final int FRAME_SAMPLES = 0;  // Channels of the current block, occupying slots [0, 8)
+	public static final int MID = 8;  // Mid channel of a stereo block
+	public static final int SIDE = 9;  // Side channel of a stereo block
+	public static final int SHIFTED = 10;  // Samples shifted right by the wasted bits, then turned into a residual
+	public static final int TRIAL = 11;  // Residual of an LPC coefficient rounding trial
+	public static final int CANDIDATE = 12;  // Coded values of the subframe encoding candidate being evaluated
+	public static final int BEST = 13;  // Coded values of the best subframe encoding, when the caller does not keep them
+	public static final int RESIDUAL = 14;  // Coded values kept by a frame search for its encoding, occupying slots [14, 22)
+	public static final int RICE_SUMS = 22;  // Sums of the Rice coded magnitudes of each partition, for size estimation
+	public static final int ROUNDING_SUMS = 23;  // Prediction sums before the shift, during the LPC coefficient rounding search
+	public static final int FIXED_SUMS = 24;  // Partition sums of Rice coded magnitudes of all fixed prediction orders at once
+	public static final int ORDER_VALUES = 25;  // Coded values of an LPC order evaluated by a parallel order search
+	public static final int RICE_BITS_AT_PARAM = 26;  // Rice coded size of each partition at each parameter
+	public static final int FIXED_BITS_AT_PARAM = 27;  // Rice coded sizes of all fixed prediction orders at once
+	private static final int NUM_LONG_SLOTS = 28;
+	
+	public static final int RICE_ESCAPE_BITS = 0;
+	public static final int CANDIDATE_PARAMS = 1;  // Rice parameters of the candidate being evaluated
+	public static final int BEST_PARAMS = 2;  // Rice parameters of the best candidate so far
+	public static final int TRIAL_PARAMS = 3;  // Rice parameters of an LPC coefficient rounding trial
+	public static final int SHIFTED_INT = 4;  // Values of an IntSignal
+	public static final int LPC_SUMS = 5;  // Dot products accumulated by the narrow LPC kernel
+	public static final int FIXED_ESCAPE_BITS = 6;  // Rice escape widths of all fixed prediction orders at once
+	public static final int ORDER_PARAMS = 7;  // Rice parameters of an LPC order evaluated by a parallel order search
+	public static final int ROUNDING_RANKING = 8;  // LPC coefficient indexes ordered by decreasing rounding error
+	private static final int NUM_INT_SLOTS = 9;
+	
+	public static final int LPC_MATRIX = 0;  // Augmented matrix of the LPC least squares problem, stored row by row
+	public static final int ROUNDING_ERRORS = 1;  // Rounding errors of the LPC coefficients, sorted along with their ranking
+	private static final int NUM_DOUBLE_SLOTS = 2;
+	
+	
+	/*---- Static members ----*/
+	
+	private static final ThreadLocal<ScratchArena> INSTANCES = new ThreadLocal<ScratchArena>() {
+		protected ScratchArena initialValue() {
+			return new ScratchArena();
+		}
+	};
+	
+	// Returns the arena belonging to the current thread.
+	public static ScratchArena get() {
+		return INSTANCES.get();
+	}
+	
+	
+	/*---- Fields ----*/
+	
+	// For each long slot, a few arrays of distinct lengths (most recently used first), because
+	// variable block size encoding cycles through several lengths. Unused entries are null.
+	private final long[][][] longArrays = new long[NUM_LONG_SLOTS][LENGTHS_PER_SLOT][];
+	
+	private final int[][] intArrays = new int[NUM_INT_SLOTS][];
+	
+	private final double[][] doubleArrays = new double[NUM_DOUBLE_SLOTS][];
+	
+	// Incremented every time a frame search starts to fill the RESIDUAL slots, so that a frame
+	// encoder can tell whether the values it kept there have been overwritten since.
+	public int residualGeneration = 0;
+	
+	private static final int LENGTHS_PER_SLOT = 8;
+	
+	
+	/*---- Methods ----*/
+	
+	// Returns an array of exactly the given length for the given slot.
+	public long[] longArray(int slot, int len) {
+		long[][] cache = longArrays[slot];
+		long[] result = null;
+		int i = 0;
+		
+		for (; i < cache.length - 1 && cache[i] != null; i++) {
+			if (cache[i].length == len) {
+				result = cache[i];
+				break;
+			}
+		}
+		
+		if (result == null) {
+			result = cache[i];
+			
+			if (result == null || result.length != len) {
+				result = new long[len];  // Evicts the least recently used array if the cache is full
+			}
+		}
+		
+		// Move to front
+		System.arraycopy(cache, 0, cache, 1, i);
+		cache[0] = result;
+		
+		return result;
+	}
+	
+	// Returns an array of at least the given length for the given slot.
+	public int[] intArray(int slot, int minLen) {
+		int[] result = intArrays[slot];
+		
+		if (result == null || result.length < minLen) {
+			result = new int[minLen];
+			intArrays[slot] = result;
+		}
+		
+		return result;
+	}
+	
+	// Returns an array of at least the given length for the given slot.
+	public double[] doubleArray(int slot, int minLen) {
+		double[] result = doubleArrays[slot];
+		
+		if (result == null || result.length < minLen) {
+			result = new double[minLen];
+			doubleArrays[slot] = result;
+		}
+		
+		return result;
+	}
+	
+	// Returns the given number of arrays of exactly the given length, taken from the consecutive slots starting at the given one.
+	public long[][] longArrays(int slot, int count, int len) {
+		long[][] result = new long[count][];
+		
+		for (int i = 0; i < count; i++) {
+			result[i] = longArray(slot + i, len);
+		}
+		
+		return result;
+	}
+}
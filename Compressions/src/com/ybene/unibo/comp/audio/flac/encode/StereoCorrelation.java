@@ -0,0 +1,87 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.encode;
+
+import com.ybene.unibo.comp.audio.flac.encode.SubframeEncoder.LpcAnalysis;
+
+/* 
+ * Computes the lag sums that the LPC analysis of the four channels of a stereo block needs (left, right, mid and
+ * side), with three autocorrelation passes instead of four. Lag sums are bilinear, so with P = left + right and
+ * S = left - right, the sums of P equal twice the sums of left plus twice the sums of right minus the sums of S.
+ * Left, right and side are computed directly and are exact. Mid is (left + right) >> 1, whose sums are derived as a
+ * quarter of those of P; the rounding of the shift makes them differ from the true ones by about one part in the
+ * signal's magnitude, which only perturbs the real LPC coefficients before they are quantized. A window applies to
+ * each channel alike, so the same identity holds for the windowed sums of the autocorrelation methods.
+ */
+final class StereoCorrelation {
+	
+	/*---- Static functions ----*/
+	
+	// Returns the lag sums of the left, right, mid and side channels (in this order) for lags 0 to maxLag, in the form the
+	// given analysis method uses: the plain sums of products for LEAST_SQUARES (see FastDotProduct), or the autocorrelation
+	// of the windowed channel otherwise (see LevinsonDurbin). Returns null if the block has no more than maxLag samples.
+	public static double[][] computeLagSums(long[] left, long[] right, long[] side, LpcAnalysis analysis, int maxLag) {
+		if (left.length != right.length || left.length != side.length || maxLag < 0) {
+			throw new IllegalArgumentException();
+		}
+		
+		if (maxLag >= left.length) {
+			return null;
+		}
+		
+		return deriveMid(lagSums(left, analysis, maxLag), lagSums(right, analysis, maxLag), lagSums(side, analysis, maxLag));
+	}
+	
+	// Returns the lag sums of the left, right, mid and side channels (in this order), given those of left, right and side.
+	// The returned array reuses the given arrays.
+	public static double[][] deriveMid(double[] leftSums, double[] rightSums, double[] sideSums) {
+		if (leftSums.length != rightSums.length || leftSums.length != sideSums.length) {
+			throw new IllegalArgumentException();
+		}
+		
+		double[] midSums = new double[leftSums.length];
+		
+		for (int i = 0; i < midSums.length; i++) {
+			midSums[i] = (2 * (leftSums[i] + rightSums[i]) - sideSums[i]) / 4;
+		}
+		
+		return new double[][]{leftSums, rightSums, midSums, sideSums};
+	}
+	
+	private static double[] lagSums(long[] samples, LpcAnalysis analysis, int maxLag) {
+		if (analysis != LpcAnalysis.LEAST_SQUARES) {
+			return LevinsonDurbin.autocorrelation(samples, analysis, maxLag);
+		}
+		
+		double[] result = new double[maxLag + 1];
+		
+		for (int i = 0; i <= maxLag; i++) {
+			result[i] = EncoderKernels.lagSum(samples, i);
+		}
+		
+		return result;
+	}
+	
+	/*---- Constructors ----*/
+	
+	private StereoCorrelation() {}  // Not instantiable
+}
@@ -0,0 +1,95 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.encode;
+
+import java.util.Objects;
+
+/* 
+ * Predicts which stereo channel assignment of a block codes smallest, without running any predictor search.
+ * Each of the four candidate channels (left, right, mid and side) is costed by the magnitude of its fixed order-2
+ * prediction residual, which is a good proxy for the size of its best subframe, and the assignment whose two channels
+ * cost the least wins. This takes one pass over the block, against four full subframe searches for the exact choice.
+ */
+public final class StereoModeEstimator {
+	
+	/*---- Static functions ----*/
+	
+	// Returns the predicted channel assignment of a stereo block, given its left and right channels of which only the
+	// first length values are used: 1 for independent, 8 for left-side, 9 for side-right, or 10 for mid-side.
+	// On equal estimates, the lower channel assignment is preferred, like the exact search does.
+	public static int predictChannelAssignment(long[] left, long[] right, int length) {
+		Objects.requireNonNull(left);
+		Objects.requireNonNull(right);
+		
+		if (length < 0 || length > left.length || length > right.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		
+		if (length < 3) {
+			return 1;
+		}
+		
+		// Sum the absolute order-2 residuals x[i] - 2x[i-1] + x[i-2] of each channel
+		long leftSum = 0, rightSum = 0, midSum = 0, sideSum = 0;
+		
+		for (int i = 2; i < length; i++) {
+			long l0 = left[i], l1 = left[i - 1], l2 = left[i - 2];
+			long r0 = right[i], r1 = right[i - 1], r2 = right[i - 2];
+			leftSum  += Math.abs(l0 - 2 * l1 + l2);
+			rightSum += Math.abs(r0 - 2 * r1 + r2);
+			midSum   += Math.abs(((l0 + r0) >> 1) - 2 * ((l1 + r1) >> 1) + ((l2 + r2) >> 1));
+			sideSum  += Math.abs((l0 - r0) - 2 * (l1 - r1) + (l2 - r2));
+		}
+		
+		int count = length - 2;
+		double leftCost  = estimateCost(leftSum , count);
+		double rightCost = estimateCost(rightSum, count);
+		double midCost   = estimateCost(midSum  , count);
+		double sideCost  = estimateCost(sideSum , count);
+		
+		double mode1Cost = leftCost + rightCost;
+		double mode8Cost = leftCost + sideCost;
+		double mode9Cost = rightCost + sideCost;
+		double mode10Cost = midCost + sideCost;
+		double minimum = Math.min(Math.min(mode1Cost, mode8Cost), Math.min(mode9Cost, mode10Cost));
+		
+		if (mode1Cost == minimum) {
+			return 1;
+		} else if (mode8Cost == minimum) {
+			return 8;
+		} else if (mode9Cost == minimum) {
+			return 9;
+		} else {
+			return 10;
+		}
+	}
+	
+	// Returns the approximate number of bits to Rice code the given number of residuals whose magnitudes have the given sum.
+	// A Laplacian residual with mean magnitude m costs about log2(m) + 2 bits; the costs of two channels are then additive.
+	private static double estimateCost(long sum, int count) {
+		return count * (Math.log(1 + (double)sum / count) / Math.log(2) + 2);
+	}
+	
+	/*---- Constructors ----*/
+	
+	private StereoModeEstimator() {}  // Not instantiable
+}
@@ -0,0 +1,307 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.encode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import com.ybene.unibo.comp.audio.flac.common.StreamInfo;
+
+/* 
+ * Encodes audio to a FLAC file while the samples arrive, using memory proportional to one block instead of the whole
+ * stream. Samples are pushed in planar form with write() or read as interleaved PCM with writePcm(); every time a block fills up,
+ * it is encoded and written as a frame. The MD5 hash and total sample count are computed on the fly, and close() rewrites the
+ * stream info metadata block (which is located at a fixed offset in the file) with the final values. Not thread safe.
+ */
+public final class StreamingFlacEncoder implements AutoCloseable {
+	
+	/*---- Fields ----*/
+	
+	private final StreamInfo info;
+	private final int blockSize;
+	private final SubframeEncoder.SearchOptions opt;
+	private final ExecutorService searchExecutor;  // Can be null
+	
+	private final BitOutputStream out;  // Writes through the file's channel
+	private boolean closed;
+	
+	private final long[][] block;  // Samples of the block currently being filled, upcasted to long
+	private int blockLen;  // Number of valid samples per channel in the block, in the range [0, blockSize)
+	private long sampleOffset;  // Number of samples per channel encoded so far
+	
+	private final MessageDigest hasher;  // Null if the sample depth is not a whole number of bytes
+	private final byte[] hashBuf;
+	
+	/*---- Constructors ----*/
+	
+	// Constructs a streaming encoder that writes a FLAC file to the given random access file, which is truncated first.
+	// The header and a provisional stream info block come first, and all data reaches the file through its channel
+	// in large chunks. The caller remains responsible for closing the file, which must happen after this encoder is closed.
+	public StreamingFlacEncoder(RandomAccessFile raf, int sampleRate, int numChannels, int sampleDepth, int blockSize, SubframeEncoder.SearchOptions opt) throws IOException {
+		this(raf, sampleRate, numChannels, sampleDepth, blockSize, opt, null);
+	}
+	
+	// Constructs a streaming encoder like above, but if searchExecutor is not null then the search of each block (its channels
+	// and their LPC orders) is spread over it, which bounds the delay of every frame with several cores. The executor is
+	// not shut down by this encoder, and the output is the same as without it.
+	public StreamingFlacEncoder(RandomAccessFile raf, int sampleRate, int numChannels, int sampleDepth, int blockSize,
+			SubframeEncoder.SearchOptions opt, ExecutorService searchExecutor) throws IOException {
+		
+		Objects.requireNonNull(raf);
+		this.opt = Objects.requireNonNull(opt);
+		this.searchExecutor = searchExecutor;
+		
+		if (blockSize < 16 || blockSize > 65535) {
+			throw new IllegalArgumentException();
+		}
+		
+		this.blockSize = blockSize;
+		info = new StreamInfo();
+		info.sampleRate = sampleRate;
+		info.numChannels = numChannels;
+		info.sampleDepth = sampleDepth;
+		info.minBlockSize = blockSize;
+		info.maxBlockSize = blockSize;
+		info.checkValues();
+		
+		block = new long[numChannels][blockSize];
+		blockLen = 0;
+		sampleOffset = 0;
+		
+		if (sampleDepth % 8 == 0) {
+			try {  // Guaranteed available by the Java Cryptography Architecture
+				hasher = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new AssertionError(e);
+			}
+			
+			hashBuf = new byte[numChannels * (sampleDepth / 8) * blockSize];
+		} else {  // Leave the hash blank, which signifies that it was not computed
+			hasher = null;
+			hashBuf = null;
+		}
+		
+		raf.setLength(0);
+		raf.seek(0);
+		out = new BitOutputStream(raf.getChannel());
+		closed = false;
+		out.writeInt(32, 0x664C6143);
+		info.write(true, out);
+	}
+	
+	/*---- Methods ----*/
+	
+	// Appends the planar samples[ : ][off : off + len] to the stream. There must be one subarray per channel,
+	// and each value must fit in a signed integer of the stream's sample depth.
+	public void write(int[][] samples, int off, int len) throws IOException {
+		checkOpen();
+		FlacEncoder.checkSamples(samples, off, len, block.length, info.sampleDepth);
+		
+		while (len > 0) {
+			int n = Math.min(blockSize - blockLen, len);
+			
+			for (int ch = 0; ch < block.length; ch++) {
+				int[] src = samples[ch];
+				long[] dest = block[ch];
+				
+				for (int i = 0; i < n; i++) {
+					dest[blockLen + i] = src[off + i];
+				}
+			}
+			
+			blockLen += n;
+			off += n;
+			len -= n;
+			
+			if (blockLen == blockSize) {
+				encodeBlock();
+			}
+		}
+	}
+	
+	// Reads numSamples samples per channel of interleaved little-endian PCM from the given stream and appends them.
+	// This is the layout of the data chunk of a WAV file: samples of 8 bits are unsigned, wider ones are signed.
+	// The sample depth must be a multiple of 8. Throws EOFException if the stream ends prematurely.
+	public void writePcm(InputStream in, long numSamples) throws IOException {
+		checkOpen();
+		Objects.requireNonNull(in);
+		
+		if (numSamples < 0) {
+			throw new IllegalArgumentException();
+		}
+		
+		int sampleDepth = info.sampleDepth;
+		
+		if (sampleDepth % 8 != 0) {
+			throw new UnsupportedOperationException("Only whole-byte sample depth supported");
+		}
+		
+		int bytesPerSample = sampleDepth / 8;
+		int numChannels = block.length;
+		byte[] buf = new byte[numChannels * bytesPerSample * blockSize];
+		
+		while (numSamples > 0) {
+			int n = (int)Math.min(blockSize - blockLen, numSamples);
+			readFully(in, buf, n * numChannels * bytesPerSample);
+			decodePcm(buf, 0, n, sampleDepth, block, blockLen);
+			
+			blockLen += n;
+			numSamples -= n;
+			
+			if (blockLen == blockSize) {
+				encodeBlock();
+			}
+		}
+	}
+	
+	// Encodes the final partial block (if any), then rewrites the stream info block with the total number of samples,
+	// the MD5 hash, and the frame size bounds. This encoder cannot be used afterward, but the file is left open.
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		
+		if (blockLen > 0) {
+			encodeBlock();
+		}
+		
+		info.numSamples = sampleOffset;
+		
+		if (hasher != null) {
+			info.md5Hash = hasher.digest();
+		}
+		
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		
+		try (BitOutputStream infoOut = new BitOutputStream(bout)) {
+			info.write(true, infoOut);
+		}
+		
+		byte[] infoBytes = bout.toByteArray();
+		out.rewrite(4, infoBytes, 0, infoBytes.length);
+		out.flush();
+		closed = true;
+	}
+	
+	// Returns the number of samples per channel accepted so far, including the ones of the pending partial block.
+	public long getNumSamples() {
+		return sampleOffset + blockLen;
+	}
+	
+	// Encodes the current block (which may be partial) as one frame, and updates the running stream statistics.
+	private void encodeBlock() throws IOException {
+		if ((sampleOffset + blockLen) >>> 36 != 0) {
+			throw new IllegalStateException("Too many samples for a FLAC stream");
+		}
+		
+		long[][] samples = block;
+		
+		if (blockLen < blockSize) {
+			samples = new long[block.length][];
+			
+			for (int ch = 0; ch < block.length; ch++) {
+				samples[ch] = Arrays.copyOf(block[ch], blockLen);
+			}
+		}
+		
+		updateHash(samples);
+		FrameEncoder enc = FrameEncoder.computeBest(sampleOffset, samples, info.sampleDepth, info.sampleRate, opt, null, searchExecutor).encoder;
+		long startByte = out.getByteCount();
+		enc.encode(samples, out);
+		FlacEncoder.updateFrameSizes(info, out.getByteCount() - startByte);
+		
+		sampleOffset += blockLen;
+		blockLen = 0;
+	}
+	
+	// Feeds the given samples to the MD5 hasher, serialized in little endian with channel interleaving.
+	private void updateHash(long[][] samples) {
+		if (hasher == null) {
+			return;
+		}
+		
+		int numBytes = info.sampleDepth / 8;
+		int len = 0;
+		
+		for (int i = 0; i < samples[0].length; i++) {
+			for (long[] chanSamples : samples) {
+				int val = (int)chanSamples[i];
+				
+				for (int k = 0; k < numBytes; k++, len++) {
+					hashBuf[len] = (byte)(val >>> (k << 3));
+				}
+			}
+		}
+		
+		hasher.update(hashBuf, 0, len);
+	}
+	
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Encoder closed");
+		}
+	}
+	
+	// Decodes n samples per channel of interleaved little-endian PCM at the given whole-byte depth from buf[off : ],
+	// into dest[ch][destOff : destOff + n] for each channel ch. Samples of 8 bits are unsigned, wider ones are signed.
+	static void decodePcm(byte[] buf, int off, int n, int sampleDepth, long[][] dest, int destOff) {
+		int bytesPerSample = sampleDepth / 8;
+		
+		for (int i = 0, k = off; i < n; i++) {
+			for (int ch = 0; ch < dest.length; ch++) {
+				int val = 0;
+				
+				for (int j = 0; j < bytesPerSample; j++, k++) {
+					val |= (buf[k] & 0xFF) << (j * 8);
+				}
+				
+				if (sampleDepth == 8) {
+					val -= 128;
+				} else {
+					val = (val << (32 - sampleDepth)) >> (32 - sampleDepth);
+				}
+				
+				dest[ch][destOff + i] = val;
+			}
+		}
+	}
+	
+	// Reads exactly len bytes from the given stream into b[0 : len], or throws EOFException.
+	private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+		for (int off = 0; off < len; ) {
+			int n = in.read(b, off, len - off);
+			
+			if (n == -1) {
+				throw new EOFException();
+			}
+			
+			off += n;
+		}
+	}
+}
@@ -22,7 +22,11 @@
 package com.ybene.unibo.comp.audio.flac.encode;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 
 /* 
@@ -42,48 +46,274 @@ public abstract class SubframeEncoder {
 			throw new IllegalArgumentException();			
 		}
 		
+		// Check that the input actually fits the indicated sample depth
+		if (!fitsSignedBits(samples, 0, samples.length, sampleDepth)) {
+			throw new IllegalArgumentException();
+		}
+		
+		return computeBest(samples, sampleDepth, opt, ScratchArena.get().longArray(ScratchArena.BEST, samples.length), null, null);
+	}
+	
+	// Same as above, but also stores into codedValues (which has the same length as samples) the values that the returned
+	// encoder writes out: the constant for a constant subframe, the shifted samples for verbatim, and for prediction
+	// the shifted warm-up samples followed by the residual. They can be handed to encode(samples, codedValues, out) later,
+	// which then skips recomputing them. The returned encoder also retains the Rice parameters chosen during the search.
+	// The samples are trusted to fit the sample depth, which is only verified when assertions are enabled. If lagSums is not
+	// null, then it holds the lag sums of the samples for lags 0 to opt.maxLpcOrder as opt.lpcAnalysis uses them (see
+	// StereoCorrelation), which the LPC analysis then takes instead of computing them. If searchExecutor is not null, then
+	// the LPC orders are evaluated concurrently on it (see ParallelSearch), which yields the same encoder as the serial search.
+	static SizeEstimate<SubframeEncoder> computeBest(long[] samples, int sampleDepth, SearchOptions opt, long[] codedValues,
+			double[] lagSums, Executor searchExecutor) {
+		
+		// Check arguments
+		Objects.requireNonNull(samples);
+		
+		if (sampleDepth < 1 || sampleDepth > 33) {
+			throw new IllegalArgumentException();			
+		}
+		
 		Objects.requireNonNull(opt);
 		
-		for (long x : samples) {
-			x >>= sampleDepth - 1;
-			// Check that the input actually fits the indicated sample depth
-			if (x != 0 && x != -1) {
-				throw new IllegalArgumentException();				
-			}
+		if (codedValues.length != samples.length || (lagSums != null && lagSums.length != opt.maxLpcOrder + 1)) {
+			throw new IllegalArgumentException();
 		}
 		
+		assert fitsSignedBits(samples, 0, samples.length, sampleDepth);
+		
 		// Encode with constant if possible
 		SizeEstimate<SubframeEncoder> result = ConstantEncoder.computeBest(samples, 0, sampleDepth);
 		
 		if (result != null) {
+			codedValues[0] = samples[0];  // Constant mode is used without shift
 			return result;			
 		}
 		
 		// Detect number of trailing zero bits
 		int shift = computeWastedBits(samples);
 		
+		// The coded values and Rice parameters of the best encoder so far and of the current candidate.
+		// Their roles are swapped instead of copying the arrays whenever a candidate becomes the best.
+		ScratchArena scratch = ScratchArena.get();
+		long[] best = codedValues;
+		long[] candidate = scratch.longArray(ScratchArena.CANDIDATE, samples.length);
+		int[] bestParams = scratch.intArray(ScratchArena.BEST_PARAMS, 1 << opt.maxRiceOrder);
+		int[] candidateParams = scratch.intArray(ScratchArena.CANDIDATE_PARAMS, 1 << opt.maxRiceOrder);
+		
 		// Start with verbatim as fallback
-		result = VerbatimEncoder.computeBest(samples, shift, sampleDepth);
+		SizeEstimate<SubframeEncoder> verbatim = VerbatimEncoder.computeBest(samples, shift, sampleDepth);
+		result = verbatim;
+		LinearPredictiveEncoder.shiftRight(samples, shift, best);
 		
-		// Try fixed prediction encoding
-		for (int order = opt.minFixedOrder; 0 <= order && order <= opt.maxFixedOrder; order++) {
-			SizeEstimate<SubframeEncoder> temp = FixedPredictionEncoder.computeBest(
-				samples, shift, sampleDepth, order, opt.maxRiceOrder);
-			result = result.minimum(temp);
+		// The predictors below read the shifted samples as 32-bit integers when they fit
+		IntSignal shifted = IntSignal.shiftedFrom(samples, shift, sampleDepth - shift);
+		
+		// Try fixed prediction encoding, searching all its orders (up to the block length) in one pass
+		int maxFixedOrder = Math.min(opt.maxFixedOrder, samples.length);
+		
+		if (0 <= opt.minFixedOrder && opt.minFixedOrder <= maxFixedOrder) {
+			SizeEstimate<SubframeEncoder> temp = FixedPredictionEncoder.computeBest(samples, shift, shifted, sampleDepth,
+				opt.minFixedOrder, maxFixedOrder, opt.maxRiceOrder, opt.estimateRiceSizes, candidate, candidateParams);
+			
+			if (result.minimum(temp) != result) {
+				result = temp;
+				long[] tempValues = best;
+				best = candidate;
+				candidate = tempValues;
+				int[] tempParams = bestParams;
+				bestParams = candidateParams;
+				candidateParams = tempParams;
+			}
+		}
+		
+		// Try linear predictive coding, either solving a least squares problem per order
+		// or obtaining the coefficients of all orders at once from the autocorrelation
+		FastDotProduct fdp = null;
+		double[][] lpcCoefs = null;
+		boolean[] lpcOrderSelected = null;  // Null means that every order in range is evaluated
+		
+		if (opt.maxLpcOrder >= 1) {
+			int numOrders = opt.maxLpcOrder - opt.minLpcOrder + 1;
+			double[] errors = null;
+			
+			if (opt.lpcOrderTrials != 0 && opt.lpcOrderTrials < numOrders) {
+				errors = new double[opt.maxLpcOrder];
+			}
+			
+			if (opt.lpcAnalysis == LpcAnalysis.LEAST_SQUARES) {
+				fdp = lagSums != null ? new FastDotProduct(samples, lagSums) : new FastDotProduct(samples, opt.maxLpcOrder);
+				
+				if (errors != null) {  // Solve every order up front, to rank them by their prediction error
+					lpcCoefs = new double[opt.maxLpcOrder][];
+					
+					for (int order = opt.minLpcOrder; order <= opt.maxLpcOrder; order++) {
+						lpcCoefs[order - 1] = LinearPredictiveEncoder.solveLeastSquares(samples.length, order, fdp);
+						errors[order - 1] = LinearPredictiveEncoder.predictionError(lpcCoefs[order - 1], samples.length, fdp);
+					}
+				}
+			} else {
+				lpcCoefs = lagSums != null
+					? LevinsonDurbin.computeCoefficients(samples, opt.lpcAnalysis, lagSums, opt.maxLpcOrder, errors)
+					: LevinsonDurbin.computeCoefficients(samples, opt.lpcAnalysis, opt.maxLpcOrder, errors);
+			}
+			
+			if (errors != null) {
+				lpcOrderSelected = selectLpcOrders(errors, samples.length, sampleDepth - shift, opt);
+			}
 		}
 		
-		// Try linear predictive coding
-		FastDotProduct fdp = new FastDotProduct(samples, Math.max(opt.maxLpcOrder, 0));
+		List<Integer> lpcOrders = new ArrayList<>();
+		
 		for (int order = opt.minLpcOrder; 0 <= order && order <= opt.maxLpcOrder; order++) {
-			SizeEstimate<SubframeEncoder> temp = LinearPredictiveEncoder.computeBest(
-				samples, shift, sampleDepth, order, Math.min(opt.lpcRoundVariables, order), fdp, opt.maxRiceOrder);
-			result = result.minimum(temp);
+			if (lpcOrderSelected == null || lpcOrderSelected[order - 1]) {
+				lpcOrders.add(order);
+			}
 		}
 		
+		// With an executor, the orders are evaluated concurrently and only the winner is computed again into the candidate arrays
+		if (searchExecutor != null && lpcOrders.size() > 1) {
+			int order = searchLpcOrders(samples, shift, shifted, sampleDepth, fdp, lpcCoefs, lpcOrders, opt, result, searchExecutor);
+			lpcOrders.clear();
+			
+			if (order != 0) {
+				lpcOrders.add(order);
+			}
+		}
+		
+		for (int order : lpcOrders) {
+			SizeEstimate<SubframeEncoder> temp = evaluateLpcOrder(samples, shift, shifted, sampleDepth, order, fdp, lpcCoefs, opt, candidate, candidateParams);
+			
+			if (result.minimum(temp) != result) {
+				result = temp;
+				long[] tempValues = best;
+				best = candidate;
+				candidate = tempValues;
+				int[] tempParams = bestParams;
+				bestParams = candidateParams;
+				candidateParams = tempParams;
+			}
+		}
+		
+		// Replace the estimated Rice coding size of the winner by the exact one, which also finds its Rice parameters
+		if (opt.estimateRiceSizes && result != verbatim) {
+			result = new SizeEstimate<>(result.encoder.recomputeRiceSize(result.sizeEstimate, best, opt.maxRiceOrder, bestParams), result.encoder);
+			
+			if (verbatim.minimum(result) == verbatim) {
+				result = verbatim;
+				LinearPredictiveEncoder.shiftRight(samples, shift, best);
+			}
+		}
+		
+		if (best != codedValues) {
+			System.arraycopy(best, 0, codedValues, 0, best.length);
+		}
+		
+		result.encoder.retainRiceParams(bestParams);
+		
 		// Return the encoder found with the lowest bit length
 		return result;
 	}
 	
+	// Computes the LPC encoding of the given order into values and params, from the coefficients of the given table if it is
+	// not null, or else by solving the least squares problem of that order with the dot products of fdp.
+	private static SizeEstimate<SubframeEncoder> evaluateLpcOrder(long[] samples, int shift, IntSignal shifted, int sampleDepth, int order,
+			FastDotProduct fdp, double[][] lpcCoefs, SearchOptions opt, long[] values, int[] params) {
+		
+		int roundVars = Math.min(opt.lpcRoundVariables, order);
+		return lpcCoefs == null
+			? LinearPredictiveEncoder.computeBest(samples, shift, shifted, sampleDepth, order, roundVars, fdp, opt.maxRiceOrder, opt.estimateRiceSizes, values, params)
+			: LinearPredictiveEncoder.computeBest(samples, shift, shifted, sampleDepth, lpcCoefs[order - 1], roundVars, opt.maxRiceOrder, opt.estimateRiceSizes, values, params);
+	}
+	
+	// Evaluates the given LPC orders concurrently on the executor, each into the order slots of the arena of the thread running it,
+	// and returns the one that the serial search would pick over the current result (the first smallest), or 0 if none beats it.
+	// The shifted signal and the coefficient sources are only read by the tasks, so they can share them with the calling thread.
+	private static int searchLpcOrders(long[] samples, int shift, IntSignal shifted, int sampleDepth, FastDotProduct fdp,
+			double[][] lpcCoefs, List<Integer> orders, SearchOptions opt, SizeEstimate<SubframeEncoder> result, Executor executor) {
+		
+		List<Callable<SizeEstimate<SubframeEncoder>>> tasks = new ArrayList<>(orders.size());
+		
+		for (int order : orders) {
+			tasks.add(() -> {
+				ScratchArena scratch = ScratchArena.get();
+				long[] values = scratch.longArray(ScratchArena.ORDER_VALUES, samples.length);
+				int[] params = scratch.intArray(ScratchArena.ORDER_PARAMS, 1 << opt.maxRiceOrder);
+				return evaluateLpcOrder(samples, shift, shifted, sampleDepth, order, fdp, lpcCoefs, opt, values, params);
+			});
+		}
+		
+		List<SizeEstimate<SubframeEncoder>> estimates = ParallelSearch.invokeAll(executor, tasks);
+		int bestOrder = 0;
+		
+		for (int i = 0; i < estimates.size(); i++) {
+			SizeEstimate<SubframeEncoder> temp = estimates.get(i);
+			
+			if (result.minimum(temp) != result) {
+				result = temp;
+				bestOrder = orders.get(i);
+			}
+		}
+		
+		return bestOrder;
+	}
+	
+	// Returns flags telling which LPC orders (at index order - 1) are among the opt.lpcOrderTrials ones in range with
+	// the smallest estimated subframe size, where errors[order - 1] is the prediction error energy of each order.
+	// On equal estimates the lower order is preferred. The estimate assumes Laplacian distributed residuals, whose
+	// Rice coded size per sample is about half the binary logarithm of their variance, plus the warm-up samples
+	// of the given width and the 15-bit quantized coefficients.
+	private static boolean[] selectLpcOrders(double[] errors, int numSamples, int width, SearchOptions opt) {
+		int numOrders = opt.maxLpcOrder - opt.minLpcOrder + 1;
+		double[] estimates = new double[numOrders];
+		int[] ranking = new int[numOrders];
+		
+		for (int i = 0; i < numOrders; i++) {
+			int order = opt.minLpcOrder + i;
+			int numResiduals = numSamples - order;
+			double bitsPerResidual = 0;
+			
+			if (errors[order - 1] > 0 && numResiduals > 0) {
+				bitsPerResidual = Math.max(0.5 * Math.log(0.5 * errors[order - 1] / numResiduals) / Math.log(2), 0);
+			}
+			
+			estimates[i] = numResiduals * bitsPerResidual + order * (width + 15);
+			
+			// Insertion sort by estimate, which is stable
+			int j = i;
+			
+			for (; j > 0 && estimates[ranking[j - 1]] > estimates[i]; j--) {
+				ranking[j] = ranking[j - 1];
+			}
+			
+			ranking[j] = i;
+		}
+		
+		boolean[] result = new boolean[opt.maxLpcOrder];
+		
+		for (int i = 0; i < opt.lpcOrderTrials; i++) {
+			result[opt.minLpcOrder + ranking[i] - 1] = true;
+		}
+		
+		return result;
+	}
+	
+	// Returns whether every value in data[start : end] fits in a signed integer of the given width, in the range [1, 64].
+	// The public entry points of the encoder validate their input with this once. The internal kernels (prediction,
+	// Rice coding, bit emission) trust their arrays, and only rerun their full scans through assert statements,
+	// so running with assertions enabled (java -ea) turns on every check for debugging.
+	static boolean fitsSignedBits(long[] data, int start, int end, int width) {
+		int shift = width - 1;
+		
+		for (int i = start; i < end; i++) {
+			long x = data[i] >> shift;
+			
+			if (x != 0 && x != -1) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
 	// Looks at each value in the array and computes the minimum number of trailing binary zeros
 	// among all the elements. For example, computedwastedBits({0b10, 0b10010, 0b1100}) = 1.
 	// If there are no elements or every value is zero (the former actually implies the latter), then
@@ -131,6 +361,23 @@ public abstract class SubframeEncoder {
 	// as the array that was passed to the constructor when this encoder object was created.
 	public abstract void encode(long[] samples, BitOutputStream out) throws IOException;
 	
+	// Encodes like encode(samples, out), but if codedValues is not null then it must hold the values computed for the same
+	// samples by computeBest() along with this encoder, which are written out directly (in that case samples may be null).
+	void encode(long[] samples, long[] codedValues, BitOutputStream out) throws IOException {
+		encode(samples, out);
+	}
+	
+	// Computes exactly the Rice coding size of the residual in codedValues (as computed by computeBest() for this encoder),
+	// whose previous size was only estimated, and stores the chosen parameters into params. Returns the exact size
+	// of the subframe in bits. The default implementation is for encoding methods without Rice coding.
+	long recomputeRiceSize(long size, long[] codedValues, int maxRiceOrder, int[] params) {
+		return size;
+	}
+	
+	// Keeps a copy of the Rice parameters that computeBest() found for this encoder's residual,
+	// if this encoding method uses Rice coding. The default implementation does nothing.
+	void retainRiceParams(int[] params) {}
+	
 	// Writes the subframe header to the given output stream, based on the given
 	// type code (uint6) and this object's sampleShift field (a.k.a. wasted bits per sample).
 	protected final void writeTypeAndShift(int type, BitOutputStream out) throws IOException {
@@ -141,21 +388,12 @@ public abstract class SubframeEncoder {
 		
 		Objects.requireNonNull(out);
 		
-		// Write some fields
-		out.writeInt(1, 0);
-		out.writeInt(6, type);
-		
-		// Write shift value in quasi-unary
+		// Write the zero padding bit, the type, and the shift value in quasi-unary
 		if (sampleShift == 0) {
-			out.writeInt(1, 0);	
+			out.writeInt(8, type << 1);
 		} else {
-			out.writeInt(1, 1);
-			
-			for (int i = 0; i < sampleShift - 1; i++) {				
-				out.writeInt(1, 0);
-			}
-			
-			out.writeInt(1, 1);
+			out.writeInt(8, type << 1 | 1);
+			out.writeUnary(sampleShift - 1);
 		}
 	}
 	
@@ -182,7 +420,34 @@ public abstract class SubframeEncoder {
 		}
 	}
 	
-	/*---- Helper structure ----*/
+	// Writes each value in vals[start : end] like writeRawSample(), so each one must fit in the same width.
+	protected final void writeRawSamples(long[] vals, int start, int end, BitOutputStream out) throws IOException {
+		int width = sampleDepth - sampleShift;
+		
+		if (width < 1 || width > 33) {
+			throw new IllegalStateException();			
+		}
+		
+		assert fitsSignedBits(vals, start, end, width);
+		out.writeInts(width, vals, start, end);
+	}
+	
+	/*---- Helper structures ----*/
+	
+	// The ways of deriving linear prediction coefficients from a subframe's samples.
+	public enum LpcAnalysis {
+		
+		// Solves the covariance least squares problem separately for each order. Exact, but costs O(order^3) per order.
+		LEAST_SQUARES,
+		
+		// Runs the Levinson-Durbin recursion on the autocorrelation of the samples multiplied by the named window,
+		// which yields the coefficients of every order in a single pass.
+		RECTANGULAR,
+		WELCH,
+		HANN,
+		TUKEY,
+	}
+	
 	
 	// Represents options for how to search the encoding parameters for a subframe. It is used directly by
 	// SubframeEncoder.computeBest() and indirectly by its sub-calls. Objects of this class are immutable.
@@ -201,19 +466,41 @@ public abstract class SubframeEncoder {
 		public final int minLpcOrder;
 		public final int maxLpcOrder;
 		
-		// How many LPC coefficient variables to try rounding both up and down.
-		// In the range [0, 30]. Note that each increase by one will double the search time!
+		// How many LPC coefficient variables (those with the largest rounding errors) to try rounding the other way, by coordinate
+		// descent. In the range [0, 30]. Each descent pass costs one trial encoding per variable, and passes repeat while they
+		// improve the size, so the cost is linear per pass and quadratic in the worst case (see LinearPredictiveEncoder).
 		public final int lpcRoundVariables;
 		
 		// The maximum partition order used in Rice coding. The minimum is not configurable and always 0.
 		// In the range [0, 15]. Note that the FLAC subset format requires maxRiceOrder <= 8.
 		public final int maxRiceOrder;
 		
+		// How the LPC coefficients are derived for each tested order. Not null. The default is LEAST_SQUARES.
+		public final LpcAnalysis lpcAnalysis;
+		
+		// How many LPC orders to evaluate fully (by computing their residual and its Rice coding size), picking those with the
+		// smallest size estimated from their prediction error. In the range [0, 32], where 0 (the default) evaluates every order.
+		public final int lpcOrderTrials;
+		
+		// Whether candidate predictors are compared by a closed-form estimate of their Rice coding size, which is much cheaper
+		// than costing every Rice parameter. Only the winner's size is then computed exactly. The default is false.
+		public final boolean estimateRiceSizes;
+		
+		// Whether a stereo frame runs the subframe search only on the two channels of the channel assignment predicted by
+		// StereoModeEstimator, instead of on all four candidates. Roughly halves the search time for a small size cost.
+		// The default is false.
+		public final boolean preselectStereoMode;
+		
 		/*-- Constructors --*/
 		
-		// Constructs a search options object based on the given values,
+		// Constructs a search options object based on the given values and the defaults for the other options,
 		// throwing an IllegalArgumentException if and only if they are nonsensical.
 		public SearchOptions(int minFixedOrder, int maxFixedOrder, int minLpcOrder, int maxLpcOrder, int lpcRoundVars, int maxRiceOrder) {
+			this(minFixedOrder, maxFixedOrder, minLpcOrder, maxLpcOrder, lpcRoundVars, maxRiceOrder, LpcAnalysis.LEAST_SQUARES, 0, false, false);
+		}
+		
+		private SearchOptions(int minFixedOrder, int maxFixedOrder, int minLpcOrder, int maxLpcOrder, int lpcRoundVars, int maxRiceOrder,
+				LpcAnalysis lpcAnalysis, int lpcOrderTrials, boolean estimateRiceSizes, boolean preselectStereoMode) {
 			// Check argument ranges
 			if ((minFixedOrder != -1 || maxFixedOrder != -1) &&
 					!(0 <= minFixedOrder && minFixedOrder <= maxFixedOrder && maxFixedOrder <= 4))
@@ -229,6 +516,9 @@ public abstract class SubframeEncoder {
 			if (maxRiceOrder < 0 || maxRiceOrder > 15)
 				throw new IllegalArgumentException();
 			
+			if (lpcOrderTrials < 0 || lpcOrderTrials > 32)
+				throw new IllegalArgumentException();
+			
 			
 			// Copy arguments to fields
 			this.minFixedOrder = minFixedOrder;
@@ -237,6 +527,43 @@ public abstract class SubframeEncoder {
 			this.maxLpcOrder = maxLpcOrder;
 			this.lpcRoundVariables = lpcRoundVars;
 			this.maxRiceOrder = maxRiceOrder;
+			this.lpcAnalysis = Objects.requireNonNull(lpcAnalysis);
+			this.lpcOrderTrials = lpcOrderTrials;
+			this.estimateRiceSizes = estimateRiceSizes;
+			this.preselectStereoMode = preselectStereoMode;
+		}
+		
+		/*-- Methods --*/
+		
+		// Returns a copy of these search options that tries no linear predictive coding orders.
+		public SearchOptions withoutLpc() {
+			return new SearchOptions(minFixedOrder, maxFixedOrder, -1, -1, lpcRoundVariables, maxRiceOrder,
+				lpcAnalysis, lpcOrderTrials, estimateRiceSizes, preselectStereoMode);
+		}
+		
+		// Returns a copy of these search options with the given way of deriving LPC coefficients.
+		public SearchOptions withLpcAnalysis(LpcAnalysis analysis) {
+			return new SearchOptions(minFixedOrder, maxFixedOrder, minLpcOrder, maxLpcOrder, lpcRoundVariables, maxRiceOrder,
+				analysis, lpcOrderTrials, estimateRiceSizes, preselectStereoMode);
+		}
+		
+		// Returns a copy of these search options that fully evaluates only the given number of most promising LPC orders.
+		public SearchOptions withLpcOrderTrials(int trials) {
+			return new SearchOptions(minFixedOrder, maxFixedOrder, minLpcOrder, maxLpcOrder, lpcRoundVariables, maxRiceOrder,
+				lpcAnalysis, trials, estimateRiceSizes, preselectStereoMode);
+		}
+		
+		// Returns a copy of these search options that compares candidates by estimated Rice coding sizes or not.
+		public SearchOptions withRiceEstimation(boolean estimate) {
+			return new SearchOptions(minFixedOrder, maxFixedOrder, minLpcOrder, maxLpcOrder, lpcRoundVariables, maxRiceOrder,
+				lpcAnalysis, lpcOrderTrials, estimate, preselectStereoMode);
+		}
+		
+		// Returns a copy of these search options that searches only the channels of the predicted stereo channel assignment
+		// (see StereoModeEstimator) or all four of them.
+		public SearchOptions withStereoPreselection(boolean preselect) {
+			return new SearchOptions(minFixedOrder, maxFixedOrder, minLpcOrder, maxLpcOrder, lpcRoundVariables, maxRiceOrder,
+				lpcAnalysis, lpcOrderTrials, estimateRiceSizes, preselect);
 		}
 		
 		/*-- Constants for recommended defaults --*/
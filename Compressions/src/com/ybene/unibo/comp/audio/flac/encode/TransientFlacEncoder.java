@@ -0,0 +1,145 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ybene.unibo.comp.audio.flac.encode;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+import com.ybene.unibo.comp.audio.flac.common.StreamInfo;
+
+
+// Encodes with variable block sizes like AdvancedFlacEncoder, but instead of searching every block size at every position
+// and choosing by dynamic programming, it decides the segmentation up front from a cheap measure of the signal and then
+// searches only the chosen blocks, which costs about as much as fixed block size encoding. The signal level of each base
+// block is measured as the binary logarithm of the mean magnitude of its fixed order-2 residual over all channels.
+// Starting at the current position, a block takes the largest size multiple whose base blocks all lie within a level
+// range of levelTolerance bits, so that long blocks cover steady passages and short blocks isolate transients.
+public final class TransientFlacEncoder {
+	
+	// The default level range, in bits, that the base blocks of one frame may span.
+	public static final double DEFAULT_LEVEL_TOLERANCE = 1.0;
+	
+	public TransientFlacEncoder(StreamInfo info, int[][] samples, int baseSize, int[] sizeMultiples, SubframeEncoder.SearchOptions opts, BitOutputStream out) throws IOException {
+		this(info, samples, baseSize, sizeMultiples, DEFAULT_LEVEL_TOLERANCE, opts, out);
+	}
+	
+	// Encodes all samples in blocks whose sizes are the given multiples of the base size (the last block possibly shorter).
+	// A smaller level tolerance splits blocks more eagerly at changes in the signal level.
+	public TransientFlacEncoder(StreamInfo info, int[][] samples, int baseSize, int[] sizeMultiples, double levelTolerance,
+			SubframeEncoder.SearchOptions opts, BitOutputStream out) throws IOException {
+		
+		Objects.requireNonNull(sizeMultiples);
+		Objects.requireNonNull(opts);
+		Objects.requireNonNull(out);
+		
+		int numSamples = samples[0].length;
+		FlacEncoder.checkSamples(samples, 0, numSamples, info.numChannels, info.sampleDepth);
+		
+		if (baseSize < 1 || !(levelTolerance >= 0)) {
+			throw new IllegalArgumentException();
+		}
+		
+		// Try the size multiples from largest to smallest
+		int[] multiples = sizeMultiples.clone();
+		Arrays.sort(multiples);
+		
+		if (multiples.length == 0 || multiples[0] < 1 || (long)multiples[multiples.length - 1] * baseSize > 65535) {
+			throw new IllegalArgumentException();
+		}
+		
+		double[] levels = computeLevels(samples, baseSize);
+		
+		// Choose and encode the blocks
+		info.minBlockSize = 0;
+		info.maxBlockSize = 0;
+		info.minFrameSize = 0;
+		info.maxFrameSize = 0;
+		
+		for (int i = 0, frame = 0; i < levels.length; frame++) {
+			int m = multiples[0];
+			
+			for (int j = multiples.length - 1; j > 0; j--) {
+				if (isSteady(levels, i, Math.min(i + multiples[j], levels.length), levelTolerance)) {
+					m = multiples[j];
+					break;
+				}
+			}
+			
+			int pos = i * baseSize;
+			int n = Math.min(m * baseSize, numSamples - pos);
+			System.err.printf("frame=%d  position=%d  blockSize=%d  %.2f%%%n", frame, pos, n, 100.0 * pos / numSamples);
+			
+			if (info.minBlockSize == 0 || n < info.minBlockSize) {
+				info.minBlockSize = Math.max(n, 16);
+			}
+			
+			info.maxBlockSize = Math.max(n, info.maxBlockSize);
+			
+			long[][] subsamples = FlacEncoder.getRange(samples, pos, n);
+			FrameEncoder enc = FrameEncoder.computeBest(pos, subsamples, info.sampleDepth, info.sampleRate, opts).encoder;
+			long startByte = out.getByteCount();
+			enc.encode(subsamples, out);
+			FlacEncoder.updateFrameSizes(info, out.getByteCount() - startByte);
+			i += m;
+		}
+	}
+	
+	// Returns the signal level of each base block (the last one possibly shorter), as the binary logarithm of one plus the mean
+	// magnitude of the fixed order-2 prediction residual over all channels. The residual of a block's first two samples is
+	// taken across the boundary with the previous block, which makes an abrupt onset count towards the block it starts in.
+	private static double[] computeLevels(int[][] samples, int baseSize) {
+		int numSamples = samples[0].length;
+		double[] result = new double[(numSamples + baseSize - 1) / baseSize];
+		
+		for (int k = 0; k < result.length; k++) {
+			int start = k * baseSize;
+			int end = Math.min(start + baseSize, numSamples);
+			long sum = 0;
+			int count = 0;
+			
+			for (int[] chan : samples) {
+				for (int i = Math.max(start, 2); i < end; i++) {
+					sum += Math.abs((long)chan[i] - 2L * chan[i - 1] + chan[i - 2]);
+				}
+				
+				count += end - Math.max(start, 2);
+			}
+			
+			result[k] = count > 0 ? Math.log(1 + (double)sum / count) / Math.log(2) : 0;
+		}
+		
+		return result;
+	}
+	
+	// Tests whether the levels[start : end] all lie within the given tolerance of each other.
+	private static boolean isSteady(double[] levels, int start, int end, double tolerance) {
+		double min = levels[start];
+		double max = levels[start];
+		
+		for (int i = start + 1; i < end; i++) {
+			min = Math.min(levels[i], min);
+			max = Math.max(levels[i], max);
+		}
+		
+		return max - min <= tolerance;
+	}
+}
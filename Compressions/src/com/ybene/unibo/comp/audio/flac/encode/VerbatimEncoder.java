@@ -48,10 +48,15 @@ final class VerbatimEncoder extends SubframeEncoder {
 	// This requires the data array to have the same values (but not necessarily
 	// the same object reference) as the array that was passed to the constructor.
 	public void encode(long[] samples, BitOutputStream out) throws IOException {
-		writeTypeAndShift(1, out);
-		
-		for (long val : samples) {
-			writeRawSample(val >> sampleShift, out);
+		encode(samples, null, out);
+	}
+	
+	void encode(long[] samples, long[] codedValues, BitOutputStream out) throws IOException {
+		if (codedValues == null) {
+			codedValues = LinearPredictiveEncoder.shiftRight(samples, sampleShift, ScratchArena.get().longArray(ScratchArena.SHIFTED, samples.length));
 		}
+		
+		writeTypeAndShift(1, out);
+		writeRawSamples(codedValues, 0, codedValues.length, out);
 	}
 }